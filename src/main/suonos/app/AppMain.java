@@ -37,7 +37,6 @@ import suonos.models.music.MusicAlbum;
 import suonos.models.music.MusicLib;
 import suonos.models.playlist.PlayListMode;
 import suonos.models.playlist.Playlist;
-import suonos.services.music.tasks.RebuildMusicLibraryTask;
 import suonos.services.player.MediaPlayerSvcs;
 import suonos.services.player.PlaybackInfo;
 import suonos.services.player.PlayerCallback;
@@ -333,10 +332,7 @@ public final class AppMain {
     private void buildTestMusicLib() throws IOException {
         MusicLib lib = Context.instanceOf(MusicLib.class);
 
-        RebuildMusicLibraryTask task = new RebuildMusicLibraryTask();
-        // task.setRebuildMetaData();
-
-        task.run(lib);
+        SuonosLib.lib().musicLibSvcs().rebuildLibrary(lib);
     }
 
     private static void testu() {
@@ -19,12 +19,16 @@ package suonos.controllers;
 
 import java.io.IOException;
 
+import org.apache.lucene.search.TopDocs;
+
 import com.github.am0e.commons.json.JsonWriter;
 import com.github.am0e.webc.action.ActionCtx;
 import com.github.am0e.webc.action.annotations.Action;
 
+import suonos.lucene.QueryResults;
 import suonos.lucene.fields.IndexedFieldCounts;
 import suonos.lucene.fields.IndexedFieldTermCount;
+import suonos.models.StoreObject;
 
 /**
  * Facets controller.
@@ -45,7 +49,11 @@ public final class FacetsController extends Controller {
     }
 
     /**
-     * GET /api/facets?fields=album_genres&filter=B
+     * GET /api/facets?fields=album_genres&filter=B GET
+     * /api/facets?fields=album_genres&type=MusicAlbum&q=title:bach (genres of
+     * the matching albums, with the top max hits). GET
+     * /api/facets?fields=album_artists&sort=count&offset=0&limit=50 (page of
+     * the artists with the most albums).
      * 
      * @return
      * @throws IOException
@@ -65,6 +73,17 @@ public final class FacetsController extends Controller {
 
                 w.startObject();
                 w.write("fieldName", fieldName);
+
+                // The number of terms and the offset of the next page.
+                //
+                w.write("totalTerms", counters.getTotalTerms(fieldName));
+
+                int nextOffset = counters.getNextOffset(fieldName);
+
+                if (nextOffset >= 0) {
+                    w.write("nextOffset", nextOffset);
+                }
+
                 w.startArray("terms");
                 for (IndexedFieldTermCount it : fieldTermCounts) {
                     String term = it.getTerm();
@@ -92,6 +111,24 @@ public final class FacetsController extends Controller {
                 w.endObject();
             }
             w.endArray();
+
+            // The top hits of the query, if the counts are restricted to a
+            // query.
+            //
+            TopDocs topDocs = counters.getTopDocs();
+
+            if (topDocs != null) {
+                w.write("totalHits", topDocs.totalHits);
+                w.startArray("hits");
+                for (StoreObject it : new QueryResults<StoreObject>(lib.stmt(), null, topDocs)) {
+                    w.startObject();
+                    w.write("id", it.getId());
+                    w.write("type", it.getClass().getSimpleName());
+                    w.endObject();
+                }
+                w.endArray();
+            }
+
             w.endObject();
             resp.getWriter().flush();
         });
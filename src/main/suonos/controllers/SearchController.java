@@ -21,7 +21,6 @@ import java.io.IOException;
 import java.util.List;
 
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.spell.Dictionary;
@@ -29,7 +28,7 @@ import org.apache.lucene.search.spell.LuceneDictionary;
 import org.apache.lucene.search.suggest.Lookup.LookupResult;
 import org.apache.lucene.search.suggest.analyzing.AnalyzingInfixSuggester;
 import org.apache.lucene.search.suggest.analyzing.AnalyzingSuggester;
-import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
 
 import com.github.am0e.webc.action.ActionCtx;
 import com.github.am0e.webc.action.annotations.Action;
@@ -101,8 +100,10 @@ public class SearchController extends Controller {
 
         String q = ctx.param("q");
 
-        NIOFSDirectory directory = lib.luceneIndex().getLuceneDirectory();
-        IndexReader rdr = DirectoryReader.open(directory);
+        // Use the shared reader rather than opening the index for every
+        // request.
+        //
+        IndexReader rdr = lib.stmt().indexReader();
         Dictionary dict = new LuceneDictionary(rdr, "track_title");
 
         // Problem is track_title is all lower case!!! ??
@@ -130,7 +131,11 @@ public class SearchController extends Controller {
             // Eg: for "ba" -
             // "bach", "bat", "banner"
             //
-            try (AnalyzingInfixSuggester as = new AnalyzingInfixSuggester(directory, new StandardAnalyzer())) {
+            // The suggester builds its own index. Keep it in memory, it must
+            // not be written into the directory of the main index.
+            //
+            try (AnalyzingInfixSuggester as = new AnalyzingInfixSuggester(new RAMDirectory(),
+                    new StandardAnalyzer())) {
                 as.build(dict);
 
                 results = as.lookup(q, false, 10);
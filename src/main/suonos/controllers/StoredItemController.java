@@ -19,10 +19,13 @@ package suonos.controllers;
 
 import java.io.IOException;
 
+import org.apache.lucene.search.Query;
+
 import com.github.am0e.webc.WebException;
 import com.github.am0e.webc.action.ActionCtx;
 import com.github.am0e.webc.action.annotations.Action;
 
+import suonos.controllers.resp.NdjsonExportResp;
 import suonos.models.Rateable;
 import suonos.models.StoreObject;
 import suonos.services.RatingSvcs;
@@ -59,6 +62,22 @@ public abstract class StoredItemController<T extends StoreObject> extends Contro
         return jsonData(queryObject(typeClass));
     }
 
+    /**
+     * Export all the objects, or the objects matching q, as newline delimited
+     * json. GET /api/tracks/export GET /api/tracks/export?q=genres:Classical
+     * GET /api/tracks/export?raw=1 (stored json verbatim).
+     * 
+     * @throws IOException
+     */
+    @Action
+    public Object export() throws IOException {
+        String q = ctx.param("q", null);
+        boolean raw = ctx.params().getInteger("raw", 0) == 1;
+        Query query = q == null ? null : lib.stmt().queryHelper().createQuery(q);
+
+        return new NdjsonExportResp(typeClass, query, raw, typeClass.getSimpleName() + ".ndjson");
+    }
+
     protected T queryObject(Class<T> typeClass) throws IOException {
         return querySvcs().getObject();
     }
@@ -17,10 +17,17 @@
 
 package suonos.controllers;
 
+import java.io.IOException;
+
+import com.github.am0e.commons.json.JsonWriter;
 import com.github.am0e.webc.action.ActionCtx;
 import com.github.am0e.webc.action.annotations.Action;
 
 import suonos.controllers.resp.JsonResp;
+import suonos.lucene.LuceneIndex;
+import suonos.lucene.ObjectCache;
+import suonos.lucene.QueryCache;
+import suonos.lucene.ResultPageCache;
 
 /**
  * /ws/ Web Services root controller.
@@ -43,4 +50,46 @@ public final class WsController extends Controller {
     public Object resource_not_found() {
         return JsonResp.error(ctx.response().getStatusCode(), "NotFound", "Resource Not Found");
     }
+
+    /**
+     * GET /ws/cache-stats The size, hits, misses and evictions of the index
+     * caches.
+     * 
+     * @return
+     * @throws IOException
+     */
+    @Action
+    public Object cache_stats() throws IOException {
+        LuceneIndex index = lib.luceneIndex();
+
+        return ctx.render("application/json", (resp) -> {
+            JsonWriter w = new JsonWriter(resp.getWriter());
+            w.startObject();
+            w.startArray("caches");
+
+            ObjectCache objects = index.getCache();
+            writeStats(w, "objects", objects.size(), objects.hits(), objects.misses(), objects.evictions());
+
+            QueryCache queries = index.getQueryCache();
+            writeStats(w, "queries", queries.size(), queries.hits(), queries.misses(), queries.evictions());
+
+            ResultPageCache pages = index.getPageCache();
+            writeStats(w, "pages", pages.size(), pages.hits(), pages.misses(), pages.evictions());
+
+            w.endArray();
+            w.endObject();
+            resp.getWriter().flush();
+        });
+    }
+
+    private static void writeStats(JsonWriter w, String name, int size, long hits, long misses, long evictions)
+            throws IOException {
+        w.startObject();
+        w.write("name", name);
+        w.write("size", size);
+        w.write("hits", hits);
+        w.write("misses", misses);
+        w.write("evictions", evictions);
+        w.endObject();
+    }
 }
@@ -19,14 +19,19 @@ package suonos.controllers.resp;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.List;
 
+import com.github.am0e.commons.AntLib;
 import com.github.am0e.commons.json.JsonObjectWriter;
 import com.github.am0e.commons.msgs.Msgs;
 import com.github.am0e.webc.action.response.JsonResponse;
 
 import suonos.app.SuonosLib;
+import suonos.lucene.ProjectedResults;
+import suonos.lucene.ProjectedRow;
 import suonos.lucene.QueryResults;
 import suonos.models.StoreObject;
+import suonos.models.media.MediaTag;
 import suonos.models.media.MediaTagValues;
 import suonos.models.media.MediaTags;
 import suonos.models.music.MusicAlbum;
@@ -44,6 +49,7 @@ public class DataResp extends JsonResponse {
 
     private String nextLink;
     private MusicLib musicLib;
+    private MediaTags mediaTags;
     private String prevLink;
     QueryResults<StoreObject> _rel = null;
 
@@ -68,6 +74,41 @@ public class DataResp extends JsonResponse {
         return musicLib;
     }
 
+    private MediaTags getMediaTags() {
+        if (mediaTags == null) {
+            mediaTags = SuonosLib.lib().instanceOf(MediaTags.class);
+        }
+        return mediaTags;
+    }
+
+    /**
+     * Same as {@link MediaTagValues#getTagValue(MediaTag)} for the values read
+     * from the index.
+     */
+    private static Object getTagValue(MediaTag tag, List<?> values) {
+        if (values.size() > 1 && tag.getVariousLabel() != null) {
+            return tag.getVariousLabel();
+        }
+
+        if (values.size() == 1) {
+            return values.get(0);
+        }
+
+        return null;
+    }
+
+    private static void loadTracks(List<Object> page) throws IOException {
+        List<MusicAlbum> albums = AntLib.newList();
+
+        for (Object it : page) {
+            if (it instanceof MusicAlbum) {
+                albums.add((MusicAlbum) it);
+            }
+        }
+
+        MusicAlbum.TRACKS.load(SuonosLib.lib().stmt(), albums);
+    }
+
     @Override
     protected void serializeJavaObject(JsonObjectWriter jw, Writer writer) throws IOException {
 
@@ -154,12 +195,68 @@ public class DataResp extends JsonResponse {
         });
 
         jw.registerAdaptor(QueryResults.class, (_jw, results) -> {
+            // Each iteration of the results loads new objects, so the page is
+            // read once and the same objects are loaded and written.
+            //
+            List<Object> page = AntLib.newList();
+
+            for (Object it : results) {
+                page.add(it);
+            }
+
+            // Load the tracks of the albums of the page at once rather than
+            // as each album is written.
+            //
+            if (jw.includeRelation("tracks")) {
+                loadTracks(page);
+            }
+
+            jw.startObj();
+            jw.genValue("totalHits", results.totalHits());
+            jw.genValue("results", page.iterator());
+            jw.endObj();
+        });
+
+        jw.registerAdaptor(ProjectedResults.class, (_jw, results) -> {
             jw.startObj();
             jw.genValue("totalHits", results.totalHits());
             jw.genValue("results", results.iterator());
             jw.endObj();
         });
 
+        // Rows of a projection query. Written in the same format as the list
+        // target of the model adaptors, without loading the objects.
+        //
+        jw.registerAdaptor(ProjectedRow.class, (_jw, row) -> {
+            MediaTags tags = getMediaTags();
+
+            jw.startObj();
+            jw.genValue("type", row.getModelType().getModelName());
+
+            for (int i = 0; i != row.size(); i++) {
+                Object val = row.getValue(i);
+
+                // Tags are returned as a single value. Eg "Various Artists".
+                //
+                if (val instanceof List) {
+                    MediaTag tag = tags.getMediaTag(row.getName(i));
+
+                    if (tag != null) {
+                        val = getTagValue(tag, (List<?>) val);
+                    }
+                }
+
+                jw.genValue(row.getName(i), val);
+            }
+
+            if (row.getModelType().getModelClass() == MusicAlbum.class
+                    && Boolean.TRUE.equals(row.get("coverArtwork"))) {
+                jw.genValue("coverArtworkUrl", Msgs.format("/ws/albums/-{}/coverart", row.get("id")));
+            }
+
+            jw.endObj();
+        });
+
         // As we are nesting the response in "data" we call skipTopLevelField()
         // to ignore "data."
         // in field paths for only,exclude,include query parameters.
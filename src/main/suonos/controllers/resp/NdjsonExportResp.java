@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.controllers.resp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.lucene.search.Query;
+
+import com.github.am0e.webc.ResponseHandler;
+import com.github.am0e.webc.WebRequest;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import suonos.app.SuonosLib;
+import suonos.httpserver.VertxWebRequest;
+import suonos.lucene.Statement;
+
+/**
+ * Streams objects as newline delimited json, see
+ * {@link Statement#exportObjects(Class, Query, boolean, OutputStream)}. The
+ * export runs on a worker thread and writes chunks straight to the response.
+ * When the write queue of the connection is full the export waits for it to
+ * drain, so memory use stays constant whatever the size of the export.
+ * 
+ * @author anthony
+ */
+public class NdjsonExportResp implements ResponseHandler {
+
+    /**
+     * Size of the chunks written to the response.
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The export fails if the client reads nothing for this long.
+     */
+    private static final long DRAIN_TIMEOUT_MS = 60000;
+
+    private final Class<?> type;
+    private final Query query;
+    private final boolean raw;
+    private final String fileName;
+
+    /**
+     * @param type
+     *            The model class, or null for all types.
+     * @param query
+     *            The query, or null for all the objects of the type.
+     * @param raw
+     *            True to write the stored json verbatim.
+     * @param fileName
+     *            The attachment file name.
+     */
+    public NdjsonExportResp(Class<?> type, Query query, boolean raw, String fileName) {
+        this.type = type;
+        this.query = query;
+        this.raw = raw;
+        this.fileName = fileName;
+    }
+
+    /**
+     * Buffers the output into chunks and writes them to the response, waiting
+     * for the write queue to drain when it is full.
+     */
+    private static final class ResponseOutputStream extends OutputStream {
+        private final HttpServerResponse response;
+        private volatile boolean closed;
+
+        /**
+         * Completed when the write queue drains or the connection closes.
+         */
+        private volatile CompletableFuture<Void> drained;
+        private Buffer chunk = Buffer.buffer(CHUNK_SIZE);
+
+        ResponseOutputStream(HttpServerResponse response) {
+            this.response = response;
+        }
+
+        /**
+         * Called on the event loop when the client goes away. Wakes up the
+         * export if it is waiting for the write queue to drain.
+         */
+        void connectionClosed() {
+            closed = true;
+
+            CompletableFuture<Void> f = drained;
+            if (f != null) {
+                f.completeExceptionally(new IOException("Connection closed"));
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            chunk.appendByte((byte) b);
+            if (chunk.length() >= CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            chunk.appendBytes(b, off, len);
+            if (chunk.length() >= CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+
+            if (chunk.length() == 0) {
+                return;
+            }
+
+            if (response.writeQueueFull()) {
+                // Set the handler before checking again, the queue may have
+                // drained or the connection closed in between.
+                //
+                CompletableFuture<Void> f = new CompletableFuture<>();
+                drained = f;
+                response.drainHandler(v -> f.complete(null));
+
+                try {
+                    if (response.writeQueueFull() && !closed) {
+                        f.get(DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    }
+
+                } catch (TimeoutException e) {
+                    throw new IOException("Timed out writing the export");
+
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IOException(e);
+
+                } finally {
+                    drained = null;
+                }
+
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+            }
+
+            response.write(chunk);
+            chunk = Buffer.buffer(CHUNK_SIZE);
+        }
+    }
+
+    private void export(ResponseOutputStream out) throws IOException {
+        // The export runs on a worker thread with its own statement.
+        //
+        try (Closeable it = SuonosLib.enterCtx()) {
+            long count = SuonosLib.lib().stmt().exportObjects(type, query, raw, out);
+            Statement.log.debug("Exported {} objects", count);
+        }
+
+        out.response.end();
+    }
+
+    @Override
+    public void handle(WebRequest ctx) throws Exception {
+        VertxWebRequest req = (VertxWebRequest) ctx;
+        HttpServerResponse response = req.httpServerResponse();
+
+        response.setChunked(true);
+        response.putHeader("Content-Type", "application/x-ndjson; charset=utf-8");
+        response.putHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+
+        ResponseOutputStream out = new ResponseOutputStream(response);
+
+        // Stop the export if the client goes away.
+        //
+        response.closeHandler(v -> out.connectionClosed());
+
+        req.asyncExec(request -> export(out), result -> {
+            if (result.failed() && !out.closed) {
+                // The headers have been sent, close the connection so that
+                // the client sees a truncated export rather than a complete
+                // one.
+                //
+                Statement.log.error("Export failed", result.cause());
+                response.close();
+            }
+        });
+    }
+}
@@ -0,0 +1,691 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import com.github.am0e.commons.AntLib;
+import com.github.am0e.commons.msgs.Msgs;
+import com.github.am0e.commons.utils.Validate;
+
+import suonos.app.SuonosLib;
+import suonos.lucene.ObjectSchema.Kind;
+import suonos.lucene.ObjectSchema.SchemaField;
+import suonos.models.media.MediaTag;
+import suonos.models.media.MediaTagValue;
+import suonos.models.media.MediaTagValues;
+import suonos.models.media.MediaTags;
+
+/**
+ * Compact binary encoding of the objects stored in the obj$ field. This is an
+ * alternative to the json encoding and is selected with the
+ * "settings.lucene.objcodec" setting.
+ *
+ * The payload starts with a format byte. Json payloads always start with '{',
+ * so documents written in either format can be read back.
+ *
+ * <pre>
+ * payload  = FORMAT_BINARY_V1 fields
+ * fields   = { key value }
+ * key      = varint (field number &lt;&lt; 3 | wire type)
+ * value    = varint | fixed32 | fixed64 | varint(length) bytes
+ * </pre>
+ *
+ * Strings, enums, lists, nested objects and tag values are length prefixed.
+ * Tag values are written as the tag id followed by the value.
+ *
+ * Instances are not thread safe. The buffer is reused between calls so
+ * encoding does not allocate once the buffer has grown to its working size.
+ *
+ * @author anthony
+ */
+public final class BinaryObjectCodec {
+
+    /**
+     * Format byte for version 1 of the binary encoding.
+     */
+    public static final byte FORMAT_BINARY_V1 = 1;
+
+    static final int WIRE_VARINT = 0;
+    static final int WIRE_FIXED64 = 1;
+    static final int WIRE_LEN = 2;
+    static final int WIRE_FIXED32 = 5;
+
+    /**
+     * The tag definitions, looked up on the first tag value decoded.
+     */
+    private MediaTags tags;
+
+    /**
+     * Output buffer.
+     */
+    private byte[] buf = new byte[4096];
+    private int pos;
+
+    /**
+     * Input buffer.
+     */
+    private byte[] in;
+    private int rpos;
+
+    public BinaryObjectCodec() {
+    }
+
+    /**
+     * @param tags
+     *            The tag definitions used to decode tag values.
+     */
+    BinaryObjectCodec(MediaTags tags) {
+        this.tags = tags;
+    }
+
+    /**
+     * Returns true if the payload is in binary format.
+     */
+    public static boolean isBinary(byte[] bytes, int offset, int length) {
+        return length > 0 && bytes[offset] == FORMAT_BINARY_V1;
+    }
+
+    /**
+     * Encodes an object. The result is available using {@link #buffer()} and
+     * {@link #length()} until the next call.
+     *
+     * @param obj
+     *            The object.
+     * @param schema
+     *            The schema of the object's class. Must be encodable, see
+     *            {@link ObjectSchema#isEncodable()}.
+     */
+    public void encode(Object obj, ObjectSchema schema) {
+        pos = 0;
+        writeByte(FORMAT_BINARY_V1);
+        writeFields(obj, schema);
+    }
+
+    public byte[] buffer() {
+        return buf;
+    }
+
+    public int length() {
+        return pos;
+    }
+
+    /**
+     * Decodes an object.
+     *
+     * @param bytes
+     *            The payload, including the format byte.
+     * @param offset
+     * @param length
+     * @param schema
+     *            The schema of the object's class.
+     * @return The new object.
+     */
+    public Object decode(byte[] bytes, int offset, int length, ObjectSchema schema) {
+        if (!isBinary(bytes, offset, length)) {
+            throw Validate.illegalArgument("bytes");
+        }
+
+        if (schema == null) {
+            throw Validate.illegalArgument("schema");
+        }
+
+        this.in = bytes;
+        this.rpos = offset + 1;
+
+        try {
+            return readObject(schema, offset + length);
+
+        } finally {
+            this.in = null;
+        }
+    }
+
+    private void writeFields(Object obj, ObjectSchema schema) {
+        for (SchemaField f : schema.fields) {
+            Object val = get(f.field, obj);
+
+            if (val != null) {
+                writeField(f, val);
+            }
+        }
+    }
+
+    private void writeField(SchemaField f, Object val) {
+        int start;
+
+        switch (f.kind) {
+        case STRING:
+            writeKey(f.number, WIRE_LEN);
+            writeString((String) val);
+            break;
+
+        case INT:
+            writeKey(f.number, WIRE_VARINT);
+            writeVarLong(zigZag((Integer) val));
+            break;
+
+        case LONG:
+            writeKey(f.number, WIRE_VARINT);
+            writeVarLong(zigZag((Long) val));
+            break;
+
+        case BOOLEAN:
+            writeKey(f.number, WIRE_VARINT);
+            writeByte(((Boolean) val) ? 1 : 0);
+            break;
+
+        case DOUBLE:
+            writeKey(f.number, WIRE_FIXED64);
+            writeFixed64(Double.doubleToRawLongBits((Double) val));
+            break;
+
+        case FLOAT:
+            writeKey(f.number, WIRE_FIXED32);
+            writeFixed32(Float.floatToRawIntBits((Float) val));
+            break;
+
+        case DATE:
+            writeKey(f.number, WIRE_VARINT);
+            writeVarLong(zigZag(((Date) val).getTime()));
+            break;
+
+        case ENUM:
+            writeKey(f.number, WIRE_LEN);
+            writeString(((Enum<?>) val).name());
+            break;
+
+        case TAGS:
+            writeKey(f.number, WIRE_LEN);
+            start = beginLen();
+            for (MediaTagValue it : (MediaTagValues) val) {
+                writeVarLong(it.getTagDefId());
+                writeString(it.getValue());
+            }
+            endLen(start);
+            break;
+
+        case LIST:
+            writeKey(f.number, WIRE_LEN);
+            start = beginLen();
+            for (Object it : (List<?>) val) {
+                if (it != null) {
+                    writeElement(f, it);
+                }
+            }
+            endLen(start);
+            break;
+
+        case OBJECT:
+            writeKey(f.number, WIRE_LEN);
+            writeObject(val, ObjectSchema.forClass(f.elementType));
+            break;
+        }
+    }
+
+    private void writeElement(SchemaField f, Object val) {
+        switch (f.elementKind) {
+        case STRING:
+            writeString((String) val);
+            break;
+
+        case INT:
+            writeVarLong(zigZag((Integer) val));
+            break;
+
+        case LONG:
+            writeVarLong(zigZag((Long) val));
+            break;
+
+        case BOOLEAN:
+            writeByte(((Boolean) val) ? 1 : 0);
+            break;
+
+        case DOUBLE:
+            writeFixed64(Double.doubleToRawLongBits((Double) val));
+            break;
+
+        case FLOAT:
+            writeFixed32(Float.floatToRawIntBits((Float) val));
+            break;
+
+        case DATE:
+            writeVarLong(zigZag(((Date) val).getTime()));
+            break;
+
+        case ENUM:
+            writeString(((Enum<?>) val).name());
+            break;
+
+        case OBJECT:
+            writeObject(val, ObjectSchema.forClass(f.elementType));
+            break;
+
+        default:
+            throw Validate.notAllowed(Msgs.format("List of {}", f.elementKind));
+        }
+    }
+
+    private void writeObject(Object obj, ObjectSchema schema) {
+        int start = beginLen();
+        writeFields(obj, schema);
+        endLen(start);
+    }
+
+    private Object readObject(ObjectSchema schema, int end) {
+        Object obj = schema.newInstance();
+
+        while (rpos < end) {
+            int key = (int) readVarLong();
+            int wire = key & 7;
+            SchemaField f = schema.getField(key >>> 3);
+
+            if (f == null || wire != wireType(f.kind)) {
+                // Field removed from the class or changed type.
+                //
+                skip(wire);
+                continue;
+            }
+
+            readField(obj, f);
+        }
+
+        return obj;
+    }
+
+    private void readField(Object obj, SchemaField f) {
+        Field field = f.field;
+        int end;
+
+        try {
+            switch (f.kind) {
+            case STRING:
+                field.set(obj, readString());
+                break;
+
+            case INT:
+                if (field.getType() == int.class)
+                    field.setInt(obj, (int) unZigZag(readVarLong()));
+                else
+                    field.set(obj, Integer.valueOf((int) unZigZag(readVarLong())));
+                break;
+
+            case LONG:
+                if (field.getType() == long.class)
+                    field.setLong(obj, unZigZag(readVarLong()));
+                else
+                    field.set(obj, Long.valueOf(unZigZag(readVarLong())));
+                break;
+
+            case BOOLEAN:
+                if (field.getType() == boolean.class)
+                    field.setBoolean(obj, readVarLong() != 0);
+                else
+                    field.set(obj, Boolean.valueOf(readVarLong() != 0));
+                break;
+
+            case DOUBLE:
+                if (field.getType() == double.class)
+                    field.setDouble(obj, Double.longBitsToDouble(readFixed64()));
+                else
+                    field.set(obj, Double.valueOf(Double.longBitsToDouble(readFixed64())));
+                break;
+
+            case FLOAT:
+                if (field.getType() == float.class)
+                    field.setFloat(obj, Float.intBitsToFloat(readFixed32()));
+                else
+                    field.set(obj, Float.valueOf(Float.intBitsToFloat(readFixed32())));
+                break;
+
+            case DATE:
+                field.set(obj, new Date(unZigZag(readVarLong())));
+                break;
+
+            case ENUM:
+                field.set(obj, readEnum(field.getType()));
+                break;
+
+            case TAGS:
+                end = readLen();
+                MediaTagValues values = new MediaTagValues();
+                while (rpos < end) {
+                    int tagId = (int) readVarLong();
+                    String value = readString();
+                    MediaTag tag = tags().getMediaTag(tagId);
+
+                    // The values were de-duplicated when encoded, so add
+                    // directly to the list.
+                    //
+                    if (tag != null) {
+                        values.getValues().add(tags().createTagValue(tag, value));
+                    }
+                }
+                field.set(obj, values);
+                break;
+
+            case LIST:
+                end = readLen();
+                List<Object> list = AntLib.newList();
+                while (rpos < end) {
+                    list.add(readElement(f));
+                }
+                field.set(obj, list);
+                break;
+
+            case OBJECT:
+                end = readLen();
+                field.set(obj, readNested(f.elementType, end));
+                break;
+            }
+
+        } catch (IllegalAccessException e) {
+            throw Validate.notAllowed(Msgs.format("Cannot set {}: {}", field, e));
+        }
+    }
+
+    private Object readElement(SchemaField f) {
+        switch (f.elementKind) {
+        case STRING:
+            return readString();
+
+        case INT:
+            return Integer.valueOf((int) unZigZag(readVarLong()));
+
+        case LONG:
+            return Long.valueOf(unZigZag(readVarLong()));
+
+        case BOOLEAN:
+            return Boolean.valueOf(readVarLong() != 0);
+
+        case DOUBLE:
+            return Double.valueOf(Double.longBitsToDouble(readFixed64()));
+
+        case FLOAT:
+            return Float.valueOf(Float.intBitsToFloat(readFixed32()));
+
+        case DATE:
+            return new Date(unZigZag(readVarLong()));
+
+        case ENUM:
+            return readEnum(f.elementType);
+
+        case OBJECT:
+            int end = readLen();
+            return readNested(f.elementType, end);
+
+        default:
+            throw Validate.notAllowed(Msgs.format("List of {}", f.elementKind));
+        }
+    }
+
+    /**
+     * Reads a nested object. Skipped if the class can no longer be created.
+     */
+    private Object readNested(Class<?> type, int end) {
+        ObjectSchema schema = ObjectSchema.forClass(type);
+
+        if (schema == null) {
+            rpos = end;
+            return null;
+        }
+
+        return readObject(schema, end);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private Object readEnum(Class<?> type) {
+        String name = readString();
+        try {
+            return Enum.valueOf((Class<Enum>) type, name);
+
+        } catch (IllegalArgumentException e) {
+            // Constant no longer exists.
+            //
+            return null;
+        }
+    }
+
+    private MediaTags tags() {
+        if (tags == null) {
+            tags = SuonosLib.lib().instanceOf(MediaTags.class);
+        }
+        return tags;
+    }
+
+    private static int wireType(Kind kind) {
+        switch (kind) {
+        case INT:
+        case LONG:
+        case BOOLEAN:
+        case DATE:
+            return WIRE_VARINT;
+        case DOUBLE:
+            return WIRE_FIXED64;
+        case FLOAT:
+            return WIRE_FIXED32;
+        default:
+            return WIRE_LEN;
+        }
+    }
+
+    private void skip(int wire) {
+        switch (wire) {
+        case WIRE_VARINT:
+            readVarLong();
+            break;
+        case WIRE_FIXED64:
+            rpos += 8;
+            break;
+        case WIRE_FIXED32:
+            rpos += 4;
+            break;
+        case WIRE_LEN:
+            rpos = readLen();
+            break;
+        default:
+            throw Validate.notAllowed(Msgs.format("Invalid wire type {}", wire));
+        }
+    }
+
+    private static Object get(Field field, Object obj) {
+        try {
+            return field.get(obj);
+
+        } catch (IllegalAccessException e) {
+            throw Validate.notAllowed(Msgs.format("Cannot get {}: {}", field, e));
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Output.
+
+    private void ensure(int n) {
+        if (pos + n > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+        }
+    }
+
+    private void writeByte(int b) {
+        ensure(1);
+        buf[pos++] = (byte) b;
+    }
+
+    private void writeKey(int number, int wire) {
+        writeVarLong(((long) number << 3) | wire);
+    }
+
+    private void writeVarLong(long v) {
+        ensure(10);
+        while ((v & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+    }
+
+    private void writeFixed32(int v) {
+        ensure(4);
+        buf[pos++] = (byte) v;
+        buf[pos++] = (byte) (v >>> 8);
+        buf[pos++] = (byte) (v >>> 16);
+        buf[pos++] = (byte) (v >>> 24);
+    }
+
+    private void writeFixed64(long v) {
+        writeFixed32((int) v);
+        writeFixed32((int) (v >>> 32));
+    }
+
+    /**
+     * Reserves a single byte for the length of the value that follows.
+     *
+     * @return The start of the value.
+     */
+    private int beginLen() {
+        writeByte(0);
+        return pos;
+    }
+
+    /**
+     * Writes the length of the value started by {@link #beginLen()}. If the
+     * length needs more than one byte, the value is moved up to make room.
+     */
+    private void endLen(int start) {
+        int len = pos - start;
+        int extra = varLongSize(len) - 1;
+
+        if (extra > 0) {
+            ensure(extra);
+            System.arraycopy(buf, start, buf, start + extra, len);
+            pos += extra;
+        }
+
+        int p = start - 1;
+        long v = len;
+        while ((v & ~0x7FL) != 0) {
+            buf[p++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[p] = (byte) v;
+    }
+
+    /**
+     * Writes a length prefixed UTF-8 string. The characters are encoded
+     * directly into the buffer.
+     */
+    private void writeString(String s) {
+        int start = beginLen();
+        int n = s.length();
+
+        ensure(n * 3);
+
+        for (int i = 0; i != n; i++) {
+            char c = s.charAt(i);
+
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+
+            } else {
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        endLen(start);
+    }
+
+    private static int varLongSize(long v) {
+        int n = 1;
+        while ((v & ~0x7FL) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    private static long zigZag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unZigZag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    // -------------------------------------------------------------------------
+    // Input.
+
+    private long readVarLong() {
+        long v = 0;
+        int shift = 0;
+        byte b;
+
+        do {
+            b = in[rpos++];
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+
+        return v;
+    }
+
+    private int readFixed32() {
+        int v = (in[rpos] & 0xFF) | (in[rpos + 1] & 0xFF) << 8 | (in[rpos + 2] & 0xFF) << 16
+                | (in[rpos + 3] & 0xFF) << 24;
+        rpos += 4;
+        return v;
+    }
+
+    private long readFixed64() {
+        long lo = readFixed32() & 0xFFFFFFFFL;
+        long hi = readFixed32() & 0xFFFFFFFFL;
+        return lo | (hi << 32);
+    }
+
+    /**
+     * Reads a length.
+     *
+     * @return The end position of the value that follows.
+     */
+    private int readLen() {
+        int len = (int) readVarLong();
+        return rpos + len;
+    }
+
+    private String readString() {
+        int end = readLen();
+        String s = new String(in, rpos, end - rpos, StandardCharsets.UTF_8);
+        rpos = end;
+        return s;
+    }
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+/**
+ * Builds boolean queries of terms directly, for code that would otherwise
+ * format a query string and parse it. The values are used as is, they are not
+ * analysed: use the indexed form, eg "1" for a true boolean field.
+ *
+ * Created by {@link QueryHelper#boolQuery()}.
+ *
+ * @author anthony
+ */
+public final class BoolQueryBuilder {
+    private final BooleanQuery.Builder bldr = new BooleanQuery.Builder();
+    private final String typeField;
+    private boolean positive;
+
+    BoolQueryBuilder(String typeField) {
+        this.typeField = typeField;
+    }
+
+    /**
+     * Restricts the query to a model class.
+     */
+    public BoolQueryBuilder type(Class<?> type) {
+        return must(typeField, type.getSimpleName());
+    }
+
+    public BoolQueryBuilder must(String field, String value) {
+        return must(new TermQuery(new Term(field, value)));
+    }
+
+    public BoolQueryBuilder mustNot(String field, String value) {
+        return mustNot(new TermQuery(new Term(field, value)));
+    }
+
+    public BoolQueryBuilder should(String field, String value) {
+        return should(new TermQuery(new Term(field, value)));
+    }
+
+    public BoolQueryBuilder must(Query query) {
+        positive = true;
+        bldr.add(query, Occur.MUST);
+        return this;
+    }
+
+    public BoolQueryBuilder mustNot(Query query) {
+        bldr.add(query, Occur.MUST_NOT);
+        return this;
+    }
+
+    public BoolQueryBuilder should(Query query) {
+        positive = true;
+        bldr.add(query, Occur.SHOULD);
+        return this;
+    }
+
+    /**
+     * Builds the query. A query with only mustNot clauses matches all the
+     * other documents.
+     */
+    public Query build() {
+        if (!positive) {
+            bldr.add(new MatchAllDocsQuery(), Occur.MUST);
+        }
+        return bldr.build();
+    }
+}
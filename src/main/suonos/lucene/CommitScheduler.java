@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import suonos.models.annotations.Threaded;
+
+/**
+ * Groups the writes of many statements into a single commit of an
+ * {@link IndexPartition}. Writers report their writes and get back a future
+ * that completes when the commit that includes them has been made durable. A
+ * background thread commits when:
+ *
+ * <ul>
+ * <li>The number of pending documents reaches maxPendingDocs.</li>
+ * <li>The oldest pending write is older than maxLatencyMs.</li>
+ * <li>No writes have been made for idleFlushMs.</li>
+ * </ul>
+ *
+ * The writes are visible to searches before they are committed, see
+ * {@link LuceneIndex#openSharedReader()}.
+ *
+ * @author anthony
+ */
+@Threaded
+final class CommitScheduler implements Runnable {
+
+    private final IndexPartition partition;
+    private final int maxLatencyMs;
+    private final int maxPendingDocs;
+    private final int idleFlushMs;
+    private ScheduledExecutorService executor;
+
+    /**
+     * Completed by the next commit. Null if there are no pending writes.
+     */
+    private CompletableFuture<Void> pending;
+
+    /**
+     * Completed by the commit in progress. Null if none.
+     */
+    private CompletableFuture<Void> committing;
+    private int pendingDocs;
+    private long firstWriteTime;
+    private long lastWriteTime;
+
+    CommitScheduler(IndexPartition partition, int maxLatencyMs, int maxPendingDocs, int idleFlushMs) {
+        this.partition = partition;
+        this.maxLatencyMs = maxLatencyMs;
+        this.maxPendingDocs = maxPendingDocs;
+        this.idleFlushMs = idleFlushMs;
+    }
+
+    void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lucene-committer-" + partition.getModelType().getModelName());
+            t.setDaemon(true);
+            return t;
+        });
+
+        // Check the policy several times within the shortest interval.
+        //
+        long period = Math.max(Math.min(maxLatencyMs, idleFlushMs) / 4, 10);
+        executor.scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background thread and commits the pending writes.
+     */
+    void stop() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+            executor = null;
+        }
+        commitNow();
+    }
+
+    /**
+     * Records writes.
+     *
+     * @param docs
+     *            The number of documents written.
+     * @return Future completed when the writes are durable.
+     */
+    synchronized CompletableFuture<Void> writesPending(int docs) {
+        long now = System.currentTimeMillis();
+
+        if (pending == null) {
+            pending = new CompletableFuture<>();
+            firstWriteTime = now;
+        }
+
+        pendingDocs += docs;
+        lastWriteTime = now;
+
+        if (pendingDocs >= maxPendingDocs && executor != null) {
+            executor.execute(this::commitNow);
+        }
+
+        return pending;
+    }
+
+    /**
+     * Gets the time of the last write, 0 if none.
+     */
+    synchronized long getLastWriteTime() {
+        return lastWriteTime;
+    }
+
+    /**
+     * Returns a future completed once the writes reported so far are durable:
+     * the future of the pending writes, else of the commit in progress. The
+     * future is already completed if there is nothing to commit. No write is
+     * recorded, so the partition does not look busy, see {@link IdleMerger}.
+     */
+    synchronized CompletableFuture<Void> nextCommit() {
+        if (pending != null) {
+            return pending;
+        }
+
+        if (committing != null) {
+            return committing;
+        }
+
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void run() {
+        if (shouldCommit(System.currentTimeMillis())) {
+            commitNow();
+        }
+    }
+
+    /**
+     * Returns true if the pending writes are due to be committed.
+     *
+     * @param now
+     *            The current time in milliseconds.
+     */
+    synchronized boolean shouldCommit(long now) {
+        return pending != null && (pendingDocs >= maxPendingDocs || now - firstWriteTime >= maxLatencyMs
+                || now - lastWriteTime >= idleFlushMs);
+    }
+
+    /**
+     * Commits the pending writes and completes the futures waiting on them.
+     */
+    void commitNow() {
+        CompletableFuture<Void> future;
+        int docs;
+
+        synchronized (this) {
+            future = pending;
+            docs = pendingDocs;
+            pending = null;
+            pendingDocs = 0;
+
+            if (future != null) {
+                committing = future;
+            }
+        }
+
+        if (future == null) {
+            return;
+        }
+
+        try {
+            partition.commitWrites();
+            LuceneIndex.log.debug("Committed {} {} documents", docs, partition.getModelType().getModelName());
+            future.complete(null);
+
+        } catch (Throwable e) {
+            LuceneIndex.log.error("Commit failed", e);
+            future.completeExceptionally(e);
+
+        } finally {
+            synchronized (this) {
+                if (committing == future) {
+                    committing = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.document.Field;
+
+import com.github.am0e.commons.AntLib;
+
+import suonos.lucene.fields.IndexedField;
+
+/**
+ * Pool of lucene {@link Field} objects used when building documents. Fields
+ * are handed out per name and reused once the documents they were added to
+ * have been passed to the IndexWriter. A document can contain several fields
+ * with the same name (multi value fields) and a batch contains several
+ * documents, so each name has a list of fields.
+ *
+ * Instances are local to a thread. See {@link StatementContext}.
+ *
+ * @author anthony
+ */
+public final class FieldPool {
+
+    private static final class Slot {
+        final List<Field> fields = AntLib.newList();
+        int used;
+    }
+
+    /**
+     * Normal (indexed or stored) fields, by name.
+     */
+    private final Map<String, Slot> fields = AntLib.newHashMap();
+
+    /**
+     * Doc value fields, by name. Lucene allows a doc value field and a normal
+     * field with the same name.
+     */
+    private final Map<String, Slot> docValueFields = AntLib.newHashMap();
+
+    /**
+     * Slots with fields in use.
+     */
+    private final List<Slot> usedSlots = AntLib.newList();
+
+    /**
+     * Returns a field for the value. Equivalent to
+     * {@link IndexedField#createField(Object)}.
+     */
+    public Field createField(IndexedField indexedField, Object value) {
+        Field fld = next(fields, indexedField.getName());
+
+        if (fld == null) {
+            return add(fields, indexedField.getName(), indexedField.createField(value));
+        }
+
+        indexedField.setFieldValue(fld, value);
+        return fld;
+    }
+
+    /**
+     * Returns a doc value field for the value. Equivalent to
+     * {@link IndexedField#createDocValueField(String, Object)}.
+     */
+    public Field createDocValueField(IndexedField indexedField, String fieldName, Object value) {
+        Field fld = next(docValueFields, fieldName);
+
+        if (fld == null) {
+            return add(docValueFields, fieldName, indexedField.createDocValueField(fieldName, value));
+        }
+
+        indexedField.setDocValue(fld, value);
+        return fld;
+    }
+
+    /**
+     * Returns a free field previously added with {@link #add(String, Field)} or
+     * null if there is none. The caller sets the value.
+     */
+    public Field next(String name) {
+        return next(fields, name);
+    }
+
+    /**
+     * Adds a new field to the pool and marks it as in use.
+     */
+    public Field add(String name, Field fld) {
+        return add(fields, name, fld);
+    }
+
+    /**
+     * Makes all the fields available again. Call once the documents have been
+     * passed to the IndexWriter.
+     */
+    public void reset() {
+        for (Slot it : usedSlots) {
+            it.used = 0;
+        }
+        usedSlots.clear();
+    }
+
+    private Field next(Map<String, Slot> map, String name) {
+        Slot slot = map.get(name);
+
+        if (slot == null || slot.used == slot.fields.size()) {
+            return null;
+        }
+
+        if (slot.used == 0) {
+            usedSlots.add(slot);
+        }
+
+        return slot.fields.get(slot.used++);
+    }
+
+    private Field add(Map<String, Slot> map, String name, Field fld) {
+        Slot slot = map.get(name);
+
+        if (slot == null) {
+            map.put(name, slot = new Slot());
+        }
+
+        if (slot.used == 0) {
+            usedSlots.add(slot);
+        }
+
+        slot.fields.add(fld);
+        slot.used = slot.fields.size();
+        return fld;
+    }
+}
@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRefBuilder;
+
+/**
+ * Looks up documents by key. The id terms are sought directly in the
+ * terms dictionary of each segment, in term order, rather than running a query:
+ * there is no scoring, no collector and no limit on the number of ids.
+ *
+ * @author anthony
+ */
+final class IdLookup {
+
+    private IdLookup() {
+    }
+
+    /**
+     * Finds the live document of each id.
+     * 
+     * @param reader
+     *            The reader.
+     * @param field
+     *            The id field.
+     * @param ids
+     *            The ids.
+     * @return The documents in the order of the ids. Ids not found are
+     *         skipped.
+     * @throws IOException
+     */
+    static TopDocs lookup(IndexReader reader, String field, Collection<String> ids) throws IOException {
+        int n = ids.size();
+        BytesRef[] terms = new BytesRef[n];
+        int[] docs = new int[n];
+        int i = 0;
+
+        for (String it : ids) {
+            terms[i++] = new BytesRef(it);
+        }
+
+        // Seek the terms in order, the terms enum then only moves forwards.
+        //
+        Integer[] order = new Integer[n];
+        for (i = 0; i != n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> terms[a].compareTo(terms[b]));
+        Arrays.fill(docs, -1);
+
+        int found = 0;
+
+        for (LeafReaderContext leaf : reader.leaves()) {
+            LeafReader leafReader = leaf.reader();
+            Terms leafTerms = leafReader.terms(field);
+
+            if (leafTerms == null) {
+                continue;
+            }
+
+            TermsEnum te = leafTerms.iterator();
+            Bits liveDocs = leafReader.getLiveDocs();
+            PostingsEnum postings = null;
+            BytesRef prev = null;
+
+            for (int ndx : order) {
+                // Skip ids already found, and duplicate ids which are copied
+                // below.
+                //
+                if (docs[ndx] != -1 || terms[ndx].equals(prev)) {
+                    continue;
+                }
+                prev = terms[ndx];
+
+                if (!te.seekExact(terms[ndx])) {
+                    continue;
+                }
+
+                postings = te.postings(liveDocs, postings, PostingsEnum.NONE);
+                int doc = postings.nextDoc();
+
+                if (doc != DocIdSetIterator.NO_MORE_DOCS) {
+                    docs[ndx] = leaf.docBase + doc;
+                    found++;
+                }
+            }
+
+            if (found == n) {
+                break;
+            }
+        }
+
+        // Duplicate ids get the document of the first.
+        //
+        for (i = 1; i < n; i++) {
+            if (terms[order[i]].equals(terms[order[i - 1]])) {
+                docs[order[i]] = docs[order[i - 1]];
+            }
+        }
+
+        ScoreDoc[] scoreDocs = new ScoreDoc[n];
+        int cnt = 0;
+
+        for (int doc : docs) {
+            if (doc != -1) {
+                scoreDocs[cnt++] = new ScoreDoc(doc, 1.0f);
+            }
+        }
+
+        return new TopDocs(cnt, Arrays.copyOf(scoreDocs, cnt), 1.0f);
+    }
+
+    /**
+     * Finds all the live documents holding each key. Used to load the objects
+     * related to other objects by a key field, eg the tracks of albums.
+     * 
+     * @param reader
+     *            The reader.
+     * @param field
+     *            The key field.
+     * @param keys
+     *            The keys.
+     * @return The documents of each key, in the order of the keys.
+     * @throws IOException
+     */
+    static int[][] lookupAll(IndexReader reader, String field, List<String> keys) throws IOException {
+        int n = keys.size();
+        BytesRef[] terms = new BytesRef[n];
+        IntsRefBuilder[] docs = new IntsRefBuilder[n];
+
+        for (int i = 0; i != n; i++) {
+            terms[i] = new BytesRef(keys.get(i));
+            docs[i] = new IntsRefBuilder();
+        }
+
+        Integer[] order = new Integer[n];
+        for (int i = 0; i != n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> terms[a].compareTo(terms[b]));
+
+        for (LeafReaderContext leaf : reader.leaves()) {
+            LeafReader leafReader = leaf.reader();
+            Terms leafTerms = leafReader.terms(field);
+
+            if (leafTerms == null) {
+                continue;
+            }
+
+            TermsEnum te = leafTerms.iterator();
+            Bits liveDocs = leafReader.getLiveDocs();
+            PostingsEnum postings = null;
+
+            for (int ndx : order) {
+                if (!te.seekExact(terms[ndx])) {
+                    continue;
+                }
+
+                postings = te.postings(liveDocs, postings, PostingsEnum.NONE);
+
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    docs[ndx].append(leaf.docBase + doc);
+                }
+            }
+        }
+
+        int[][] res = new int[n][];
+
+        for (int i = 0; i != n; i++) {
+            res[i] = Arrays.copyOf(docs[i].ints(), docs[i].length());
+        }
+
+        return res;
+    }
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.IndexWriter;
+
+import suonos.models.annotations.Threaded;
+
+/**
+ * Merges away the deleted documents of the partitions while the server is
+ * idle. Updates and rebuilds leave deleted documents in the segments. The merge
+ * policy reclaims them as segments are merged, but documents that are rarely
+ * rewritten can hold many deletes for a long time. A background thread checks
+ * the partitions periodically and, when there have been no searches or writes
+ * for idleMs, merges the segments of a partition whose ratio of deleted
+ * documents is over deletesPctAllowed.
+ *
+ * @author anthony
+ */
+@Threaded
+final class IdleMerger implements Runnable {
+
+    private final LuceneIndex index;
+    private final int idleMs;
+    private final int checkMs;
+    private final int deletesPctAllowed;
+    private ScheduledExecutorService executor;
+
+    IdleMerger(LuceneIndex index, int idleMs, int checkMs, int deletesPctAllowed) {
+        this.index = index;
+        this.idleMs = idleMs;
+        this.checkMs = checkMs;
+        this.deletesPctAllowed = deletesPctAllowed;
+    }
+
+    void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lucene-idle-merger");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+
+        executor.scheduleWithFixedDelay(this, checkMs, checkMs, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+            executor = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        for (IndexPartition it : index.partitions()) {
+            // Check before each partition, a merge can take a while.
+            //
+            if (!isIdle(it)) {
+                return;
+            }
+
+            try {
+                mergeDeletes(it);
+
+            } catch (Throwable e) {
+                LuceneIndex.log.error("Merge of " + it + " failed", e);
+            }
+        }
+    }
+
+    private boolean isIdle(IndexPartition partition) {
+        long now = System.currentTimeMillis();
+        return now - index.getLastSearchTime() >= idleMs && now - partition.getLastWriteTime() >= idleMs;
+    }
+
+    private void mergeDeletes(IndexPartition partition) throws IOException {
+        SharedLuceneWriter writer = partition.openWriter();
+
+        try {
+            IndexWriter iw = writer.indexWriter();
+            double ratio = partition.updateDeletedDocsRatio();
+
+            LuceneIndex.log.info("{} deleted documents ratio {}", partition, String.format("%.3f", ratio));
+
+            if (ratio * 100 <= deletesPctAllowed) {
+                return;
+            }
+
+            // Merge the segments with more than deletesPctAllowed deleted
+            // documents. The merges are run by the merge scheduler, this
+            // thread waits for them.
+            //
+            long start = System.currentTimeMillis();
+            iw.forceMergeDeletes(true);
+
+            LuceneIndex.log.info("{} deletes merged in {} ms, ratio now {}", partition,
+                    System.currentTimeMillis() - start, String.format("%.3f", partition.updateDeletedDocsRatio()));
+
+        } finally {
+            partition.releaseWriter(writer);
+        }
+
+        // Reopen the readers onto the merged segments and commit.
+        //
+        partition.writesPending(0);
+    }
+}
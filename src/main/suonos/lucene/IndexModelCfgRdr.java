@@ -25,6 +25,7 @@ import java.nio.file.Paths;
 import com.github.am0e.commons.beans.BaseInfo;
 import com.github.am0e.commons.beans.BeanClassWrapper;
 import com.github.am0e.commons.beans.BeanUtils;
+import com.github.am0e.commons.utils.StringUtil;
 import com.github.am0e.commons.utils.Validate;
 import com.github.am0e.commons.xml.model.Attribute;
 import com.github.am0e.commons.xml.model.Attributes;
@@ -60,6 +61,7 @@ public class IndexModelCfgRdr {
         addFieldTypes(doc);
         addFields(doc);
         addModels(doc);
+        addViews(doc);
     }
 
     private void addModels(Document doc) {
@@ -69,10 +71,33 @@ public class IndexModelCfgRdr {
             String typeName = model.getAttributeValue("type");
             Class<Object> ModelClass = loadClass(typeName);
 
-            addType(ModelClass);
+            ModelType type = addType(ModelClass);
+
+            // Optional commit policy of the partition of the model.
+            //
+            type.commitMaxLatencyMs = getIntAttribute(model, "commitMaxLatencyMs");
+            type.commitMaxPendingDocs = getIntAttribute(model, "commitMaxPendingDocs");
         }
     }
 
+    private void addViews(Document doc) {
+        Element[] views = doc.getDocumentElement().getElements("view");
+
+        for (Element el : views) {
+            String modelName = el.getAttributeValue("model");
+            ModelType type = models.getModelType(modelName);
+
+            Validate.notNull(type, "Unknown model: {}", modelName);
+
+            type.addView(el.getAttributeValue("name"), StringUtil.split(el.getAttributeValue("fields"), ","));
+        }
+    }
+
+    private int getIntAttribute(Element el, String name) {
+        String val = el.getAttributeValue(name);
+        return val == null ? 0 : Integer.parseInt(val);
+    }
+
     private <T> Class<T> loadClass(String typeName) {
         return BeanUtils.loadClass(classLoader, typeName);
     }
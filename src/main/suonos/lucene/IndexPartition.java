@@ -0,0 +1,407 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.index.CodecReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FilterCodecReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+
+import com.github.am0e.commons.AntLib;
+import com.github.am0e.commons.beans.BeanException;
+import com.github.am0e.commons.msgs.Msgs;
+import com.github.am0e.commons.utils.Validate;
+
+import suonos.models.annotations.Threaded;
+
+/**
+ * The sub-index holding the documents of one {@link ModelType}. Each partition
+ * has its own directory, writer and commit scheduler, so writes of one type do
+ * not churn the segments or wait on the commits of the others. Searches go
+ * through the composite reader published by {@link LuceneIndex}.
+ *
+ * @author anthony
+ */
+@Threaded
+final class IndexPartition {
+    private final LuceneIndex index;
+
+    /**
+     * Position in {@link LuceneIndex#partitions()}.
+     */
+    final int ordinal;
+
+    private final ModelType modelType;
+    private final Path path;
+    private final Directory directory;
+    private final CommitScheduler commitScheduler;
+
+    /**
+     * The writer. Opened on first use and kept open until the index is
+     * stopped.
+     */
+    private final AtomicReference<SharedLuceneWriter> sharedWriter = new AtomicReference<>();
+
+    /**
+     * Set when documents have been written since the reader of the partition
+     * was opened.
+     */
+    private volatile boolean readerStale;
+
+    /**
+     * Set when the partition has been replaced by a rebuild. See
+     * {@link IndexRebuild}.
+     */
+    private volatile boolean retired;
+
+    /**
+     * Ratio of deleted documents to all documents, as last computed by
+     * {@link #updateDeletedDocsRatio()}.
+     */
+    private volatile double deletedDocsRatio;
+
+    IndexPartition(LuceneIndex index, int ordinal, ModelType modelType, Path path, Directory directory,
+            int commitMaxLatencyMs, int commitMaxPendingDocs, int commitIdleFlushMs) {
+        this.index = index;
+        this.ordinal = ordinal;
+        this.modelType = modelType;
+        this.path = path;
+        this.directory = directory;
+        this.commitScheduler = new CommitScheduler(this, commitMaxLatencyMs, commitMaxPendingDocs,
+                commitIdleFlushMs);
+    }
+
+    ModelType getModelType() {
+        return modelType;
+    }
+
+    Directory getDirectory() {
+        return directory;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    void start() {
+        commitScheduler.start();
+    }
+
+    SharedLuceneWriter openWriter() {
+
+        while (true) {
+            // Fast path. The writer is kept open until the index is stopped.
+            //
+            SharedLuceneWriter writer = sharedWriter.get();
+
+            if (writer != null && writer.tryIncRefCount()) {
+                return writer;
+            }
+
+            synchronized (this) {
+                if (retired) {
+                    throw Validate.notAllowed(
+                            Msgs.format("The {} index has been replaced by a rebuild", modelType.getModelName()));
+                }
+
+                if (sharedWriter.get() == null) {
+                    // Readers are opened from the writer so that they see the
+                    // writes before they are committed.
+                    //
+                    try {
+                        sharedWriter.set(new SharedLuceneWriter(this, index.createIndexWriter(directory)));
+
+                    } catch (IOException e) {
+                        throw new BeanException(e);
+                    }
+                }
+            }
+        }
+    }
+
+    void releaseWriter(SharedLuceneWriter writer) {
+        try {
+            // Decrease reference count. The writer is kept open for the next
+            // call, the writes are committed by the committer.
+            //
+            writer.decRefCount();
+
+        } catch (IOException e) {
+            throw new BeanException(e);
+        }
+    }
+
+    /**
+     * Commits the writes. Called by the {@link CommitScheduler}.
+     * 
+     * @throws IOException
+     */
+    void commitWrites() throws IOException {
+        SharedLuceneWriter writer = sharedWriter.get();
+
+        if (writer != null) {
+            // IndexWriter.commit() is thread safe.
+            //
+            writer.indexWriter().commit();
+        }
+    }
+
+    /**
+     * Records documents written by a statement. The composite reader is
+     * reopened on the next call to {@link LuceneIndex#openSharedReader()} so
+     * that the writes are visible.
+     * 
+     * @param docs
+     *            The number of documents written.
+     * @return Future completed when the writes are durable.
+     */
+    CompletableFuture<Void> writesPending(int docs) {
+        readerStale = true;
+        index.readerStale();
+        return commitScheduler.writesPending(docs);
+    }
+
+    /**
+     * Gets the time of the last write to the partition.
+     */
+    long getLastWriteTime() {
+        return commitScheduler.getLastWriteTime();
+    }
+
+    /**
+     * Computes the ratio of deleted documents using the writer, if open.
+     */
+    double updateDeletedDocsRatio() {
+        SharedLuceneWriter writer = sharedWriter.get();
+
+        if (writer != null) {
+            IndexWriter iw = writer.indexWriter();
+            int maxDoc = iw.maxDoc();
+            deletedDocsRatio = maxDoc == 0 ? 0 : (double) (maxDoc - iw.numDocs()) / maxDoc;
+        }
+
+        return deletedDocsRatio;
+    }
+
+    double getDeletedDocsRatio() {
+        return deletedDocsRatio;
+    }
+
+    /**
+     * Returns a future completed by the next commit of the partition.
+     */
+    CompletableFuture<Void> nextCommit() {
+        return commitScheduler.nextCommit();
+    }
+
+    /**
+     * Opens a reader onto the partition. Near real time if the writer is open.
+     * 
+     * @return The reader. The caller owns the reference.
+     * @throws IOException
+     */
+    DirectoryReader openReader() throws IOException {
+        readerStale = false;
+
+        if (sharedWriter.get() == null && DirectoryReader.indexExists(directory)) {
+            return DirectoryReader.open(directory);
+        }
+
+        // Near real time reader. Opening the writer creates the index if there
+        // is none.
+        //
+        SharedLuceneWriter writer = openWriter();
+
+        try {
+            return DirectoryReader.open(writer.indexWriter(), true);
+
+        } finally {
+            releaseWriter(writer);
+        }
+    }
+
+    /**
+     * Reopens the reader of the partition if there have been writes. Only the
+     * segments that have changed are loaded.
+     * 
+     * @param current
+     *            The current reader of the partition.
+     * @return The new reader, owned by the caller, or null if unchanged.
+     * @throws IOException
+     */
+    DirectoryReader reopenReader(DirectoryReader current) throws IOException {
+        if (!readerStale) {
+            return null;
+        }
+
+        // Clear the flag first, writes made while reopening set it again.
+        //
+        readerStale = false;
+
+        SharedLuceneWriter writer = sharedWriter.get();
+
+        if (writer != null) {
+            return DirectoryReader.openIfChanged(current, writer.indexWriter(), true);
+        } else {
+            return DirectoryReader.openIfChanged(current);
+        }
+    }
+
+    /**
+     * Copies the documents of the model type from an index holding all types.
+     * Used to split an index written before partitions were introduced. Each
+     * segment of the source is filtered down to the documents of the type, so
+     * only those documents are copied and nothing is left to merge away. The
+     * documents of an import interrupted by a crash are replaced in the same
+     * commit.
+     * 
+     * @param source
+     *            The reader of the index.
+     * @throws IOException
+     */
+    void importDocuments(DirectoryReader source) throws IOException {
+        BytesRef type = new BytesRef(modelType.getModelName());
+        List<CodecReader> readers = AntLib.newList();
+
+        for (LeafReaderContext it : source.leaves()) {
+            CodecReader reader = (CodecReader) it.reader();
+            FixedBitSet docs = typeDocs(reader, type);
+
+            if (docs != null) {
+                readers.add(new TypeDocsReader(reader, docs));
+            }
+        }
+
+        SharedLuceneWriter writer = openWriter();
+
+        try {
+            IndexWriter iw = writer.indexWriter();
+            iw.deleteAll();
+            iw.addIndexes(readers.toArray(new CodecReader[readers.size()]));
+            iw.commit();
+
+            LuceneIndex.log.info("Imported {} {} documents into {}", iw.numDocs(), modelType.getModelName(), path);
+
+        } finally {
+            releaseWriter(writer);
+        }
+    }
+
+    /**
+     * Gets the live documents of a segment with the type, or null if none.
+     */
+    private static FixedBitSet typeDocs(LeafReader reader, BytesRef type) throws IOException {
+        Terms terms = reader.terms("type$");
+
+        if (terms == null) {
+            return null;
+        }
+
+        TermsEnum te = terms.iterator();
+
+        if (!te.seekExact(type)) {
+            return null;
+        }
+
+        FixedBitSet docs = new FixedBitSet(reader.maxDoc());
+        PostingsEnum postings = te.postings(reader.getLiveDocs(), null, PostingsEnum.NONE);
+
+        for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+            docs.set(doc);
+        }
+
+        return docs.cardinality() == 0 ? null : docs;
+    }
+
+    /**
+     * A segment with only the documents of one type live.
+     */
+    private static final class TypeDocsReader extends FilterCodecReader {
+        private final FixedBitSet docs;
+        private final int numDocs;
+
+        TypeDocsReader(CodecReader in, FixedBitSet docs) {
+            super(in);
+            this.docs = docs;
+            this.numDocs = docs.cardinality();
+        }
+
+        @Override
+        public Bits getLiveDocs() {
+            return docs;
+        }
+
+        @Override
+        public int numDocs() {
+            return numDocs;
+        }
+    }
+
+    /**
+     * Stops the committer, committing the pending writes.
+     */
+    void stop() throws InterruptedException {
+        commitScheduler.stop();
+    }
+
+    /**
+     * Closes the writer once released. Writes are no longer accepted. The
+     * directory is left open for the readers still using the partition.
+     */
+    void retire() throws IOException {
+        synchronized (this) {
+            retired = true;
+        }
+
+        SharedLuceneWriter writer = sharedWriter.getAndSet(null);
+
+        if (writer != null) {
+            // Commits and closes the writer once released.
+            //
+            writer.forceCloseDown();
+        }
+    }
+
+    /**
+     * Closes the writer, once released, and the directory.
+     */
+    void close() throws IOException {
+        retire();
+        directory.close();
+    }
+
+    @Override
+    public String toString() {
+        return modelType.getModelName();
+    }
+}
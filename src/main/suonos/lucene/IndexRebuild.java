@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+
+import com.github.am0e.commons.AntLib;
+import com.github.am0e.commons.providers.Context;
+
+import suonos.models.StoreObject;
+import suonos.models.annotations.Threaded;
+
+/**
+ * A full rebuild of some model types into new (shadow) partitions. The live
+ * index is left untouched while the rebuild runs: searches see the previous
+ * documents until {@link #swap()} replaces the partitions in a single step.
+ * Readers opened before the swap keep the previous partitions until they are
+ * released.
+ *
+ * Documents are written to the shadow partitions using the statement returned
+ * by {@link #statement()}. Queries made with it search the live index, so
+ * objects to keep (eg objects created by users) can be queried and saved into
+ * the new partitions.
+ *
+ * The live partitions of the rebuilt types still accept writes. They are
+ * recorded and replayed onto the new partitions by the swap, see
+ * {@link LuceneIndex#swapPartitions(IndexRebuild)}.
+ *
+ * Created by {@link LuceneIndex#beginRebuild(Class...)}.
+ *
+ * @author anthony
+ */
+@Threaded
+public final class IndexRebuild implements AutoCloseable {
+    private final LuceneIndex index;
+    private final String buildId;
+
+    /**
+     * The shadow partitions, indexed by partition ordinal. Null for the types
+     * not rebuilt.
+     */
+    private final IndexPartition[] shadows;
+
+    /**
+     * The writes to the live partitions of the rebuilt types, indexed by
+     * partition ordinal.
+     */
+    private final LiveWrites[] writes;
+    private Statement stmt;
+    private boolean done;
+
+    /**
+     * The ids of the documents written to a live partition and the delete
+     * queries run on it.
+     */
+    private static final class LiveWrites {
+        final Set<String> ids = new LinkedHashSet<>();
+        final List<Query> deletes = AntLib.newList();
+    }
+
+    IndexRebuild(LuceneIndex index, String buildId, IndexPartition[] shadows) {
+        this.index = index;
+        this.buildId = buildId;
+        this.shadows = shadows;
+        this.writes = new LiveWrites[shadows.length];
+
+        for (int i = 0; i != writes.length; i++) {
+            writes[i] = new LiveWrites();
+        }
+    }
+
+    public String getBuildId() {
+        return buildId;
+    }
+
+    /**
+     * Gets the statement writing to the shadow partitions.
+     */
+    public Statement statement() {
+        if (stmt == null) {
+            stmt = new Statement(index, Context.instanceOf(StatementContext.class), this);
+        }
+        return stmt;
+    }
+
+    /**
+     * Gets the partition written to for a live partition: the shadow if the
+     * type is rebuilt.
+     */
+    IndexPartition partition(IndexPartition live) {
+        IndexPartition shadow = shadows[live.ordinal];
+        return shadow != null ? shadow : live;
+    }
+
+    IndexPartition[] shadows() {
+        return shadows;
+    }
+
+    synchronized void recordWrite(int ordinal, String id) {
+        writes[ordinal].ids.add(id);
+    }
+
+    synchronized void recordDelete(int ordinal, Query query) {
+        writes[ordinal].deletes.add(query);
+    }
+
+    /**
+     * Replays the writes made to the live partitions onto the shadows. The
+     * deletes are repeated, then each document written is copied from the
+     * live index, or deleted if it no longer exists. Called by the swap while
+     * writes are held off, the statement is then closed.
+     * 
+     * @param live
+     *            Statement reading the live index, including the latest
+     *            writes.
+     */
+    synchronized void replayWrites(Statement live) throws IOException {
+        Statement rebuilt = statement();
+
+        for (IndexPartition shadow : shadows) {
+            if (shadow == null) {
+                continue;
+            }
+
+            LiveWrites w = writes[shadow.ordinal];
+            Class<?> type = shadow.getModelType().getModelClass();
+            IndexWriter iw = rebuilt.indexWriter(type);
+
+            for (Query it : w.deletes) {
+                iw.deleteDocuments(it);
+            }
+
+            for (String id : w.ids) {
+                StoreObject obj = live.getObject(id);
+
+                if (obj != null && obj.getClass() == type) {
+                    rebuilt.saveObject(obj);
+                } else {
+                    iw.deleteDocuments(new Term("id", id));
+                }
+            }
+
+            if (!w.ids.isEmpty() || !w.deletes.isEmpty()) {
+                LuceneIndex.log.info("Replayed {} writes and {} deletes onto {}", w.ids.size(), w.deletes.size(),
+                        shadow.getPath());
+            }
+        }
+
+        closeStatement();
+    }
+
+    /**
+     * Commits the shadow partitions and makes them live.
+     * 
+     * @throws IOException
+     */
+    public void swap() throws IOException {
+        index.swapPartitions(this);
+        done = true;
+    }
+
+    /**
+     * Discards the shadow partitions. The live index is unchanged.
+     * 
+     * @throws IOException
+     */
+    public void abort() throws IOException {
+        closeStatement();
+        index.discardPartitions(this);
+        done = true;
+    }
+
+    /**
+     * Aborts the rebuild if it has not been swapped.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!done) {
+            abort();
+        }
+    }
+
+    private void closeStatement() {
+        if (stmt != null) {
+            stmt.close();
+            stmt = null;
+        }
+    }
+}
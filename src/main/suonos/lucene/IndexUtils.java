@@ -16,23 +16,191 @@
  *******************************************************************************/
 package suonos.lucene;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.Base64;
 
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.BytesRef;
+
+import suonos.services.ServiceException;
 
 public class IndexUtils {
 
-    public static String buildLastScoreToken(ScoreDoc lastScore) {
-        ByteBuffer b = ByteBuffer.allocate(8);
+    /**
+     * Tokens written before sort values were added: doc and score only.
+     */
+    private static final int LEGACY_TOKEN_LENGTH = 8;
+
+    private static final byte TOKEN_VERSION = 2;
+
+    // Tags of the sort values in a token.
+    //
+    private static final byte NULL = 0;
+    private static final byte BYTES = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte FLOAT = 4;
+    private static final byte DOUBLE = 5;
+
+    /**
+     * Builds the token of the next page. The token holds the doc and score of
+     * the last hit, its sort values if the query is sorted, and the generation
+     * of the reader that produced it.
+     * 
+     * @param lastScore
+     *            The last hit of the page. A {@link FieldDoc} for sorted
+     *            queries.
+     * @param generation
+     *            The reader generation, see {@link Statement#readerGeneration()}.
+     * @return The url safe token.
+     */
+    public static String buildLastScoreToken(ScoreDoc lastScore, long generation) {
+        Object[] fields = lastScore instanceof FieldDoc ? ((FieldDoc) lastScore).fields : null;
+        int size = 1 + 8 + 4 + 4 + 1;
+
+        if (fields != null) {
+            for (Object it : fields) {
+                size += 1 + (it instanceof BytesRef ? 4 + ((BytesRef) it).length : 8);
+            }
+        }
+
+        ByteBuffer b = ByteBuffer.allocate(size);
+        b.put(TOKEN_VERSION);
+        b.putLong(generation);
         b.putInt(lastScore.doc);
         b.putFloat(lastScore.score);
+        b.put((byte) (fields == null ? 0 : fields.length));
+
+        if (fields != null) {
+            for (Object it : fields) {
+                putValue(b, it);
+            }
+        }
+
         return Base64.getUrlEncoder().withoutPadding().encodeToString(b.array());
     }
 
-    public static ScoreDoc parseLastScoreToken(String id) {
-        ByteBuffer b = ByteBuffer.wrap(Base64.getUrlDecoder().decode(id));
-        return new ScoreDoc(b.getInt(), b.getFloat());
+    /**
+     * Parses a token built by {@link #buildLastScoreToken(ScoreDoc, long)}.
+     * 
+     * @param id
+     *            The token.
+     * @param numFields
+     *            The number of sort fields of the query, 0 if the query is
+     *            sorted by relevance.
+     * @return A {@link FieldDoc} if the token has sort values, a ScoreDoc
+     *         otherwise.
+     * @throws ServiceException
+     *             If the token is invalid or was built for a different sort.
+     */
+    public static ScoreDoc parseLastScoreToken(String id, int numFields) {
+        ByteBuffer b = decodeToken(id);
+
+        if (b.remaining() == LEGACY_TOKEN_LENGTH) {
+            return new ScoreDoc(b.getInt(), b.getFloat());
+        }
+
+        try {
+            b.position(1 + 8);
+
+            int doc = b.getInt();
+            float score = b.getFloat();
+            int n = b.get();
+
+            if (n != numFields) {
+                throw new ServiceException("Invalid token");
+            }
+
+            Object[] fields = new Object[n];
+
+            for (int i = 0; i != n; i++) {
+                fields[i] = getValue(b);
+            }
+
+            if (b.hasRemaining()) {
+                throw new ServiceException("Invalid token");
+            }
+
+            return n == 0 ? new ScoreDoc(doc, score) : new FieldDoc(doc, score, fields);
+
+        } catch (BufferUnderflowException e) {
+            throw new ServiceException("Invalid token");
+        }
+    }
+
+    /**
+     * Gets the reader generation of a token.
+     * 
+     * @return The generation or -1 if the token has none.
+     */
+    public static long parseTokenGeneration(String id) {
+        ByteBuffer b = decodeToken(id);
+        return b.remaining() == LEGACY_TOKEN_LENGTH ? -1 : b.getLong(1);
+    }
+
+    private static ByteBuffer decodeToken(String id) {
+        ByteBuffer b;
+
+        try {
+            b = ByteBuffer.wrap(Base64.getUrlDecoder().decode(id));
+
+        } catch (IllegalArgumentException e) {
+            throw new ServiceException("Invalid token");
+        }
+
+        if (b.remaining() != LEGACY_TOKEN_LENGTH && (b.remaining() < 18 || b.get(0) != TOKEN_VERSION)) {
+            throw new ServiceException("Invalid token");
+        }
+
+        return b;
     }
 
+    private static void putValue(ByteBuffer b, Object val) {
+        if (val == null) {
+            b.put(NULL).putLong(0);
+        } else if (val instanceof BytesRef) {
+            BytesRef bytes = (BytesRef) val;
+            b.put(BYTES).putInt(bytes.length).put(bytes.bytes, bytes.offset, bytes.length);
+        } else if (val instanceof Integer) {
+            b.put(INT).putLong((Integer) val);
+        } else if (val instanceof Long) {
+            b.put(LONG).putLong((Long) val);
+        } else if (val instanceof Float) {
+            b.put(FLOAT).putDouble((Float) val);
+        } else if (val instanceof Double) {
+            b.put(DOUBLE).putDouble((Double) val);
+        } else {
+            throw new IllegalArgumentException(val.getClass().getName());
+        }
+    }
+
+    private static Object getValue(ByteBuffer b) {
+        byte tag = b.get();
+
+        switch (tag) {
+        case NULL:
+            b.getLong();
+            return null;
+        case BYTES:
+            int len = b.getInt();
+            if (len < 0 || len > b.remaining()) {
+                throw new ServiceException("Invalid token");
+            }
+            byte[] bytes = new byte[len];
+            b.get(bytes);
+            return new BytesRef(bytes);
+        case INT:
+            return (int) b.getLong();
+        case LONG:
+            return b.getLong();
+        case FLOAT:
+            return (float) b.getDouble();
+        case DOUBLE:
+            return b.getDouble();
+        default:
+            throw new ServiceException("Invalid token");
+        }
+    }
 }
@@ -17,31 +17,72 @@
 package suonos.lucene;
 
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
 
+import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexFileNames;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.index.sorter.SortingMergePolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
 import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.NRTCachingDirectory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.am0e.commons.AntLib;
 import com.github.am0e.commons.beans.BeanException;
-import com.github.am0e.commons.cache.ICache;
+import com.github.am0e.commons.msgs.Msgs;
 import com.github.am0e.commons.providers.Context;
+import com.github.am0e.commons.utils.Validate;
 import com.github.am0e.jdi.BeanContainer;
 import com.github.am0e.jdi.annotn.Global;
+import com.github.am0e.jdi.annotn.Setting;
 import com.github.am0e.jdi.interfaces.Startable;
 
+import suonos.app.utils.FilesUtils;
+import suonos.app.utils.Uids;
+import suonos.lucene.fields.FacetCountsCache;
+import suonos.lucene.fields.IndexedFieldCountsBuilder;
+
 /**
  * This class manages the Lucene index. It is a singleton object.
  * 
@@ -52,16 +93,270 @@ import com.github.am0e.jdi.interfaces.Startable;
 public class LuceneIndex implements Startable {
     static final Logger log = LoggerFactory.getLogger(LuceneIndex.class);
 
+    /**
+     * Last field of every sort: the document id. Makes the order of documents
+     * with the same sort values stable across readers, so that a page token
+     * stays valid after the index changes.
+     */
+    static final SortField TIE_BREAK_SORT_FIELD = new SortField("id$s", SortField.Type.STRING);
+
+    private static final Sort INDEX_SORT = new Sort(new SortField("type$s", SortField.Type.STRING),
+            new SortField("sort$", SortField.Type.STRING), TIE_BREAK_SORT_FIELD);
+
     /**
      * Path to the lucene store.
      */
     private Path indexRoot;
     private Analyzer analyser;
-    private SharedLuceneReader sharedIndexReader;
-    private SharedLuceneWriter sharedIndexWriter;
+
+    /**
+     * The published composite reader. Acquired and released without a lock,
+     * see {@link SharedBase}. The lock is only taken to open or reopen it.
+     */
+    private final AtomicReference<SharedLuceneReader> sharedIndexReader = new AtomicReference<>();
+
+    /**
+     * Generation of the published reader. See {@link ObjectCache}.
+     */
+    private final AtomicLong readerGeneration = new AtomicLong();
+
+    /**
+     * One sub-index per model type, sorted by model name. See
+     * {@link IndexPartition}.
+     */
+    private volatile IndexPartition[] partitions;
+    private volatile Map<Class<?>, IndexPartition> partitionsByClass;
+
+    /**
+     * Partitions replaced by a rebuild. Their directories are closed when the
+     * index is stopped, readers may still be using them.
+     */
+    private final List<IndexPartition> retiredPartitions = new ArrayList<>();
+
+    /**
+     * The rebuilds in progress, indexed by partition ordinal. Replaced, not
+     * updated, while holding the monitor.
+     */
+    private volatile IndexRebuild[] rebuilds;
+
+    /**
+     * Writes to the live partitions hold the read lock. Swapping in a rebuild
+     * holds the write lock, so that the writes made while the rebuild ran are
+     * all replayed onto the new partitions.
+     */
+    private final ReentrantReadWriteLock swapLock = new ReentrantReadWriteLock();
+
+    /**
+     * Names the directory of each partition once a rebuild has been swapped
+     * in. See {@link #getPartitionPath(ModelType)}.
+     */
+    private static final String PARTITIONS_MANIFEST = "partitions.current";
+
+    /**
+     * Written once all the partitions have committed the documents of an
+     * index written before partitions were introduced. See
+     * {@link #importUnpartitionedIndex()}.
+     */
+    private static final String IMPORTED_MARKER = "partitions.imported";
     private Similarity similarity;
     private IndexModels models;
-    private ICache<Object> cache = AntLib.getCache(LuceneIndex.class, "cache");
+
+    /**
+     * Cache of the objects decoded from the obj$ field.
+     */
+    private ObjectCache cache = new ObjectCache(10000);
+
+    /**
+     * Maximum number of decoded objects cached. 0 disables the cache.
+     */
+    @Inject
+    @Setting(path = "settings.lucene.objectcache.maxEntries")
+    private int objectCacheMaxEntries = 10000;
+
+    /**
+     * Cache of parsed queries.
+     */
+    private QueryCache queryCache = new QueryCache(1000);
+
+    /**
+     * Cache of the hits of result pages.
+     */
+    private ResultPageCache pageCache = new ResultPageCache(16384);
+
+    /**
+     * Cache of the facet counts of each segment.
+     */
+    private final FacetCountsCache facetCountsCache = new FacetCountsCache();
+
+    /**
+     * Memory budget of the result page cache. 0 disables the cache.
+     */
+    @Inject
+    @Setting(path = "settings.lucene.pagecache.maxKB")
+    private int pageCacheMaxKB = 16384;
+
+    /**
+     * Maximum number of parsed queries cached. 0 disables the cache.
+     */
+    @Inject
+    @Setting(path = "settings.lucene.querycache.maxEntries")
+    private int queryCacheMaxEntries = 1000;
+
+    /**
+     * Encoding of the obj$ field: "json" or "binary". Documents written with
+     * either encoding can be read.
+     */
+    @Inject
+    @Setting(path = "settings.lucene.objcodec")
+    private String objectCodec = "json";
+
+    /**
+     * Directory implementation: "mmap", "niofs" or "nrtcaching". "nrtcaching"
+     * wraps a mmap directory and keeps small newly flushed segments in memory.
+     */
+    @Inject
+    @Setting(path = "settings.lucene.directory")
+    private String directoryType = "mmap";
+
+    /**
+     * NRTCachingDirectory: segments produced by merges larger than this are
+     * written straight to disk.
+     */
+    @Inject
+    @Setting(path = "settings.lucene.nrtcache.maxMergeSizeMB")
+    private int nrtCacheMaxMergeSizeMB = 5;
+
+    /**
+     * NRTCachingDirectory: maximum memory used for caching segments, per
+     * partition.
+     */
+    @Inject
+    @Setting(path = "settings.lucene.nrtcache.maxCachedMB")
+    private int nrtCacheMaxCachedMB = 60;
+
+    /**
+     * Commit policy of each partition. See {@link CommitScheduler}.
+     */
+    @Inject
+    @Setting(path = "settings.lucene.commit.maxLatencyMs")
+    private int commitMaxLatencyMs = 5000;
+
+    @Inject
+    @Setting(path = "settings.lucene.commit.maxPendingDocs")
+    private int commitMaxPendingDocs = 10000;
+
+    @Inject
+    @Setting(path = "settings.lucene.commit.idleFlushMs")
+    private int commitIdleFlushMs = 1000;
+
+    /**
+     * Number of threads searching the segments of a query concurrently. 0
+     * searches on the calling thread. The pool is used only by searches, not
+     * shared with the web server workers.
+     */
+    @Inject
+    @Setting(path = "settings.lucene.search.threads")
+    private int searchThreads = 0;
+
+    /**
+     * Maximum queued slices before the calling thread searches the slice
+     * itself.
+     */
+    @Inject
+    @Setting(path = "settings.lucene.search.maxQueued")
+    private int searchMaxQueued = 1000;
+
+    /**
+     * Slice sizing. See {@link SlicedIndexSearcher}.
+     */
+    @Inject
+    @Setting(path = "settings.lucene.search.sliceMaxDocs")
+    private int searchSliceMaxDocs = 250000;
+
+    @Inject
+    @Setting(path = "settings.lucene.search.sliceMaxSegments")
+    private int searchSliceMaxSegments = 5;
+
+    private ExecutorService searchExecutor;
+
+    /**
+     * Number of threads counting the fields and segments of a facet request
+     * concurrently. 0 counts on the calling thread.
+     */
+    @Inject
+    @Setting(path = "settings.lucene.facets.threads")
+    private int facetThreads = 4;
+
+    private ForkJoinPool facetPool;
+
+    /**
+     * Merge policy. See TieredMergePolicy.
+     */
+    @Inject
+    @Setting(path = "settings.lucene.merge.segmentsPerTier")
+    private int mergeSegmentsPerTier = 10;
+
+    @Inject
+    @Setting(path = "settings.lucene.merge.maxMergeAtOnce")
+    private int mergeMaxMergeAtOnce = 10;
+
+    @Inject
+    @Setting(path = "settings.lucene.merge.maxMergedSegmentMB")
+    private int mergeMaxMergedSegmentMB = 5120;
+
+    /**
+     * Percentage of deleted documents in a segment above which the segment is
+     * merged by the idle merger. See {@link IdleMerger}.
+     */
+    @Inject
+    @Setting(path = "settings.lucene.merge.deletesPctAllowed")
+    private int mergeDeletesPctAllowed = 10;
+
+    /**
+     * Merge scheduler. Number of merge threads per partition, 0 sets it from
+     * the number of cores and whether the index is on an SSD.
+     */
+    @Inject
+    @Setting(path = "settings.lucene.merge.maxThreads")
+    private int mergeMaxThreads = 0;
+
+    /**
+     * 1 to throttle the I/O rate of merges when they fall behind the indexing,
+     * 0 to merge at full speed.
+     */
+    @Inject
+    @Setting(path = "settings.lucene.merge.ioThrottle")
+    private int mergeIoThrottle = 1;
+
+    /**
+     * The idle merger runs once there have been no searches or writes for
+     * idleMs. It checks every idleCheckMs. 0 disables it.
+     */
+    @Inject
+    @Setting(path = "settings.lucene.merge.idleMs")
+    private int mergeIdleMs = 300000;
+
+    @Inject
+    @Setting(path = "settings.lucene.merge.idleCheckMs")
+    private int mergeIdleCheckMs = 60000;
+
+    private IdleMerger idleMerger;
+
+    /**
+     * Time of the last search, to within a second. See {@link IdleMerger}.
+     */
+    private volatile long lastSearchTime;
+
+    /**
+     * Set when documents have been written to a partition since the shared
+     * reader was opened.
+     */
+    private volatile boolean readerStale;
+
+    /**
+     * Held by the thread reopening the shared reader.
+     */
+    private final ReentrantLock reopenLock = new ReentrantLock();
 
     public LuceneIndex() throws IOException {
         models = new IndexModels();
@@ -86,89 +381,278 @@ public class LuceneIndex implements Startable {
         return indexRoot;
     }
 
-    public NIOFSDirectory getLuceneDirectory() throws IOException {
-        return new NIOFSDirectory(getIndexDirectory());
-    }
+    /**
+     * Creates the lucene directory of a partition. The implementation is set
+     * by settings.lucene.directory.
+     */
+    private Directory createDirectory(Path path) throws IOException {
+        log.debug("Opening {} directory {}", directoryType, path);
 
-    private void initialiseAnalyser() {
-        analyser = new FieldsAnalyser(models.indexedFields);
-    }
+        switch (directoryType) {
+        case "mmap":
+            return new MMapDirectory(path);
 
-    public SharedLuceneWriter openSharedWriter() {
+        case "niofs":
+            return new NIOFSDirectory(path);
 
-        synchronized (this) {
-            // Do we have a searcher for the store id?
-            //
-            if (sharedIndexWriter == null) {
-                // Make sure that we have an IndexReader before creating the
-                // IndexWriter so that if any searches are
-                // performed while the index is being written to, the readers
-                // will not see the changes until we have committed.
-                //
-                try {
-                    Directory indexDir = getLuceneDirectory();
-                    IndexWriter writer = getIndexWriter(indexDir);
-                    sharedIndexWriter = new SharedLuceneWriter(this, writer);
+        case "nrtcaching":
+            return new NRTCachingDirectory(new MMapDirectory(path), nrtCacheMaxMergeSizeMB, nrtCacheMaxCachedMB);
 
-                } catch (IOException e) {
-                    throw new BeanException(e);
-                }
-            }
+        case "auto":
+            return FSDirectory.open(path);
 
-            sharedIndexWriter.incRefCount();
-            return sharedIndexWriter;
+        default:
+            throw Validate.illegalArgument(Msgs.format("Invalid lucene directory type {}", directoryType));
         }
     }
 
-    private IndexWriter getIndexWriter(Directory indexDir) throws IOException {
+    private void initialiseAnalyser() {
+        analyser = new FieldsAnalyser(models.indexedFields);
+    }
+
+    /**
+     * Creates the writer of a partition.
+     */
+    IndexWriter createIndexWriter(Directory indexDir) throws IOException {
         // Build the index writer using our analyser to do the analysis.
         // This is the same analyser as used by the searcher.
         //
         IndexWriterConfig cfg = new IndexWriterConfig(getAnalyser());
         cfg.setOpenMode(OpenMode.CREATE_OR_APPEND);
+
+        // Merged segments are sorted by the index sort so that sorted browse
+        // queries can stop collecting early. See QueryHelper.
+        //
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setSegmentsPerTier(mergeSegmentsPerTier);
+        mergePolicy.setMaxMergeAtOnce(mergeMaxMergeAtOnce);
+        mergePolicy.setMaxMergedSegmentMB(mergeMaxMergedSegmentMB);
+        mergePolicy.setForceMergeDeletesPctAllowed(mergeDeletesPctAllowed);
+
+        cfg.setMergePolicy(new SortingMergePolicy(mergePolicy, INDEX_SORT));
+
+        ConcurrentMergeScheduler mergeScheduler = new ConcurrentMergeScheduler();
+
+        if (mergeMaxThreads > 0) {
+            // Same ratio of queued merges to threads as the default.
+            //
+            mergeScheduler.setMaxMergesAndThreads(mergeMaxThreads + 5, mergeMaxThreads);
+        }
+
+        if (mergeIoThrottle == 0) {
+            mergeScheduler.disableAutoIOThrottle();
+        }
+
+        cfg.setMergeScheduler(mergeScheduler);
+
         return new IndexWriter(indexDir, cfg);
     }
 
-    public void commitWrites() throws IOException {
-        synchronized (this) {
-            if (sharedIndexWriter != null) {
-                // Commit the changes to the writer.
-                //
-                sharedIndexWriter.indexWriter().commit();
+    /**
+     * The order of the documents in merged segments: by type then by the
+     * browse key of the model, eg the first 4 characters of the album title,
+     * then by id. See {@link ModelType#getSortKeyFieldName()}.
+     */
+    public Sort getIndexSort() {
+        return INDEX_SORT;
+    }
+
+    /**
+     * Creates the searcher of a reader. Searches the segments concurrently if
+     * settings.lucene.search.threads is set.
+     */
+    IndexSearcher newSearcher(IndexReader reader) {
+        if (searchExecutor == null) {
+            return new IndexSearcher(reader);
+        }
+
+        return new SlicedIndexSearcher(reader, searchExecutor);
+    }
+
+    private ExecutorService createSearchExecutor() {
+        AtomicInteger threadNo = new AtomicInteger();
+
+        // Bounded queue. When full the calling thread searches the slice, so
+        // a burst of queries degrades to searching on the request threads.
+        //
+        return new ThreadPoolExecutor(searchThreads, searchThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(searchMaxQueued), r -> {
+                    Thread t = new Thread(r, "lucene-search-" + threadNo.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    private ForkJoinPool createFacetPool() {
+        AtomicInteger threadNo = new AtomicInteger();
+
+        return new ForkJoinPool(facetThreads, pool -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            t.setName("lucene-facets-" + threadNo.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, null, false);
+    }
 
-                // Tear down the reader.
+    /**
+     * Gets the pool counting facets, null if facets are counted on the calling
+     * thread. See {@link IndexedFieldCountsBuilder#addFields(String[], String)}.
+     */
+    public final ForkJoinPool getFacetPool() {
+        return facetPool;
+    }
+
+    /**
+     * Gets the partitions, sorted by model name.
+     */
+    IndexPartition[] partitions() {
+        return partitions;
+    }
+
+    /**
+     * Gets the partition holding the documents of a model class.
+     */
+    IndexPartition partition(Class<?> type) {
+        IndexPartition partition = partitionsByClass.get(type);
+
+        if (partition == null) {
+            throw Validate.illegalArgument(Msgs.format("No index partition for {}", type));
+        }
+
+        return partition;
+    }
+
+    /**
+     * Called by a partition after writes. The shared reader is reopened on the
+     * next call to {@link #openSharedReader()}.
+     */
+    void readerStale() {
+        readerStale = true;
+    }
+
+    long getLastSearchTime() {
+        return lastSearchTime;
+    }
+
+    /**
+     * Gets the ratio of deleted documents of each partition, as last computed
+     * by the idle merger, by model name.
+     */
+    public Map<String, Double> getDeletedDocsRatios() {
+        Map<String, Double> res = AntLib.newHashMap();
+
+        for (IndexPartition it : partitions) {
+            res.put(it.getModelType().getModelName(), it.getDeletedDocsRatio());
+        }
+
+        return res;
+    }
+
+    /**
+     * Requests a commit of the pending writes of all the partitions. The
+     * commits are made by the background committers.
+     * 
+     * @return Future completed when the writes are durable.
+     */
+    public CompletableFuture<Void> requestCommit() {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[partitions.length];
+
+        for (int i = 0; i != partitions.length; i++) {
+            futures[i] = partitions[i].nextCommit();
+        }
+
+        return CompletableFuture.allOf(futures);
+    }
+
+    /**
+     * Retrieves the shared reader, a composite of the partition readers. The
+     * reader is shared between multiple threads and acquired without a lock.
+     * When a new reader is published after writes, the previous reader is
+     * closed once the last thread using it has released it.
+     * 
+     * @return The reader. Release it using releaseSharedReader().
+     */
+    public SharedLuceneReader openSharedReader() {
+        return openSharedReader(false);
+    }
+
+    /**
+     * Retrieves the shared reader.
+     * 
+     * @param seeWrites
+     *            True if the caller has written and must see its writes. The
+     *            caller then waits for a reopen in progress. Otherwise the
+     *            current reader is returned while another thread reopens it.
+     * @return The reader. Release it using releaseSharedReader().
+     */
+    SharedLuceneReader openSharedReader(boolean seeWrites) {
+        // The idle merger only needs the time to the second. Avoid a volatile
+        // write, and the cache line bouncing between cores, on every search.
+        //
+        long now = System.currentTimeMillis();
+
+        if (now - lastSearchTime > 1000) {
+            lastSearchTime = now;
+        }
+
+        // Reopen the reader if there have been writes.
+        //
+        if (readerStale) {
+            refreshReader(seeWrites);
+        }
+
+        while (true) {
+            SharedLuceneReader reader = sharedIndexReader.get();
+
+            if (reader == null) {
+                openFirstReader();
+                continue;
+            }
+
+            if (reader.tryIncRefCount()) {
+                // Check it has not been replaced while we acquired it, so that
+                // the caller sees the latest writes.
                 //
-                tearDownReader();
+                if (reader == sharedIndexReader.get()) {
+                    return reader;
+                }
+
+                releaseSharedReader(reader);
             }
         }
     }
 
-    void releaseSharedWriter(SharedLuceneWriter writer) {
+    void releaseSharedReader(SharedLuceneReader reader) {
+        try {
+            // Decrease reference count. The last release of a retired reader
+            // closes it.
+            //
+            reader.decRefCount();
 
+        } catch (IOException e) {
+            throw new BeanException(e);
+        }
+    }
+
+    /**
+     * Opens and publishes the first reader.
+     */
+    private void openFirstReader() {
         synchronized (this) {
-            // Sanity check.
-            //
-            if (writer != sharedIndexWriter) {
-                throw new IllegalArgumentException();
+            if (sharedIndexReader.get() != null) {
+                return;
             }
 
             try {
-                // Decrease reference count. If 0 the search is kept open for
-                // the next call.
-                //
-                if (writer.decRefCount() == 0) {
-                    // Close down the writer as we have finished writing.
-                    //
-                    writer.releaseResources();
-
-                    // Tear down the existing index searcher as the index has
-                    // changed and we need to allocate a new
-                    // searcher for the changes to be seen during searching.
-                    //
-                    tearDownReader();
+                readerStale = false;
+
+                DirectoryReader[] readers = new DirectoryReader[partitions.length];
+
+                for (int i = 0; i != partitions.length; i++) {
+                    readers[i] = partitions[i].openReader();
                 }
 
-                this.sharedIndexWriter = null;
+                publishReader(readers, readers);
 
             } catch (IOException e) {
                 throw new BeanException(e);
@@ -177,95 +661,500 @@ public class LuceneIndex implements Startable {
     }
 
     /**
-     * Retrieves the Lucene IndexSearcher object. The IndexSearcher is allocated
-     * only once and is shared between multiple threads. When closeWriter() is
-     * called, the index searcher is reset and existing IndexSearcher objects
-     * are closed.
+     * Reopens the shared reader after writes. Only the partitions written to
+     * are reopened, and only the segments that have changed are loaded. The
+     * readers of the other partitions are shared with the previous reader.
+     * Threads still using the previous reader keep it until they release it,
+     * the last release closes it.
      * 
-     * @param storeId
-     * @return A single IndexSearcher shared by all threads. Use closeSearcher()
-     *         to close the searcher rather than calling the internal close()
-     *         method.
+     * Only one thread reopens the reader. Reopening flushes the writers, the
+     * other threads do not wait for it and keep using the current reader,
+     * unless they must see their own writes.
+     * 
+     * @param wait
+     *            True to wait for a reopen in progress.
      */
-    public SharedLuceneReader openSharedReader() {
+    private void refreshReader(boolean wait) {
 
-        synchronized (this) {
-            // Do we have a searcher for the store id?
+        if (wait) {
+            reopenLock.lock();
+
+        } else if (!reopenLock.tryLock()) {
+            return;
+        }
+
+        // The partitions are swapped by a rebuild while holding the monitor.
+        //
+        try {
+            synchronized (this) {
+                refreshReaderLocked();
+            }
+
+        } finally {
+            reopenLock.unlock();
+        }
+    }
+
+    private void refreshReaderLocked() {
+        SharedLuceneReader current = sharedIndexReader.get();
+
+        if (current == null || !readerStale) {
+            // Nothing to reopen, or reopened by another thread.
             //
-            if (sharedIndexReader == null) {
-                // Create a new lucene Index Reader using the currently active
-                // index.
-                //
-                try {
-                    Directory indexDir = getLuceneDirectory();
-
-                    // Check if there is an index.
-                    //
-                    if (indexDir.listAll().length == 0) {
-                        // Create an empty index.
-                        //
-                        IndexWriter writer = getIndexWriter(indexDir);
-                        writer.close();
-                    }
+            return;
+        }
 
-                    // Open a reader onto the index.
-                    //
-                    IndexReader reader = DirectoryReader.open(indexDir);
+        // Clear the flag first, writes made while reopening set it again.
+        //
+        readerStale = false;
 
-                    // Wrap the reader.
-                    //
-                    sharedIndexReader = new SharedLuceneReader(this, reader);
+        try {
+            DirectoryReader[] readers = current.partitionReaders().clone();
+            DirectoryReader[] opened = new DirectoryReader[partitions.length];
+            boolean changed = false;
 
-                    // If there are any searches currently active in other
-                    // threads, they will all call decCount() on the
-                    // RefCountedIndexSearcher until the final one causes the
-                    // index reader to be closed.
+            for (int i = 0; i != partitions.length; i++) {
+                opened[i] = partitions[i].reopenReader(readers[i]);
 
-                } catch (IOException e) {
-                    throw new BeanException(e);
+                if (opened[i] != null) {
+                    readers[i] = opened[i];
+                    changed = true;
                 }
             }
 
-            // Increase usage count first time to 1.
+            // Keep the current reader if there are no changes.
             //
-            sharedIndexReader.incRefCount();
-            return sharedIndexReader;
+            if (changed) {
+                log.debug("IndexReader reopened");
+                publishReader(readers, opened);
+            }
+
+        } catch (IOException e) {
+            throw new BeanException(e);
         }
     }
 
-    void releaseSharedReader(SharedLuceneReader searcher) {
+    /**
+     * Publishes a new composite reader and retires the previous one.
+     * 
+     * @param readers
+     *            The partition readers.
+     * @param opened
+     *            The readers newly opened by the caller. Null for the readers
+     *            shared with the previous reader.
+     */
+    private void publishReader(DirectoryReader[] readers, DirectoryReader[] opened) throws IOException {
+
+        // The composite takes a reference on each partition reader and
+        // releases it when closed. Drop the references of the new readers so
+        // that the composite owns them.
+        //
+        MultiReader composite = new MultiReader(readers, false);
+
+        for (DirectoryReader it : opened) {
+            if (it != null) {
+                it.decRef();
+            }
+        }
+
+        SharedLuceneReader reader = new SharedLuceneReader(this, composite, readers,
+                readerGeneration.incrementAndGet());
+
+        // The cached objects and pages are indexed by the document ids of the
+        // previous reader.
+        //
+        cache.invalidate(reader.generation());
+        pageCache.invalidate(reader.generation());
+
+        SharedLuceneReader previous = sharedIndexReader.getAndSet(reader);
+
+        // Close down the previous reader when the last reference to it is
+        // released.
+        //
+        if (previous != null) {
+            previous.forceCloseDown();
+        }
+    }
+
+    /**
+     * Creates the partitions, one per model type in models.xml.
+     */
+    private void createPartitions() throws IOException {
+        List<ModelType> types = new ArrayList<>(models.getModelTypes());
+        types.sort((a, b) -> a.getModelName().compareTo(b.getModelName()));
+
+        partitions = new IndexPartition[types.size()];
+        partitionsByClass = new IdentityHashMap<>();
+        rebuilds = new IndexRebuild[partitions.length];
+
+        for (int i = 0; i != partitions.length; i++) {
+            ModelType type = types.get(i);
+
+            partitions[i] = newPartition(i, type, getPartitionPath(type));
+            partitionsByClass.put(type.getModelClass(), partitions[i]);
+        }
+    }
+
+    private IndexPartition newPartition(int ordinal, ModelType type, Path path) throws IOException {
+        Files.createDirectories(path);
+
+        // The model can override the commit policy. Eg commit playlist edits
+        // sooner than track imports.
+        //
+        int maxLatencyMs = type.commitMaxLatencyMs > 0 ? type.commitMaxLatencyMs : commitMaxLatencyMs;
+        int maxPendingDocs = type.commitMaxPendingDocs > 0 ? type.commitMaxPendingDocs : commitMaxPendingDocs;
+
+        return new IndexPartition(this, ordinal, type, path, createDirectory(path), maxLatencyMs, maxPendingDocs,
+                commitIdleFlushMs);
+    }
+
+    /**
+     * Gets the directory of the partition of a model type: the directory named
+     * in indexRoot/partitions.current, written when a rebuild is swapped in,
+     * or indexRoot/ModelName. The indexRoot/ModelName.current files written
+     * before the manifest are still read.
+     */
+    private Path getPartitionPath(ModelType type) throws IOException {
+        Path manifest = getIndexRoot().resolve(PARTITIONS_MANIFEST);
+
+        if (Files.exists(manifest)) {
+            for (String line : FilesUtils.readString(manifest).split("\n")) {
+                int ndx = line.indexOf('=');
+
+                if (ndx != -1 && line.substring(0, ndx).trim().equals(type.getModelName())) {
+                    return getIndexRoot().resolve(line.substring(ndx + 1).trim());
+                }
+            }
+        }
+
+        Path current = getIndexRoot().resolve(type.getModelName() + ".current");
+
+        if (Files.exists(current)) {
+            return getIndexRoot().resolve(FilesUtils.readString(current).trim());
+        }
+
+        return getIndexRoot().resolve(type.getModelName());
+    }
+
+    /**
+     * Records the directories of all the partitions in the manifest. The file
+     * is replaced in a single step so that a crash leaves either the previous
+     * or the new directories of all the types current.
+     */
+    private void setPartitionPaths(IndexPartition[] partitions) throws IOException {
+        StringBuilder sb = new StringBuilder();
+
+        for (IndexPartition it : partitions) {
+            sb.append(it.getModelType().getModelName()).append('=').append(it.getPath().getFileName()).append('\n');
+        }
+
+        Path manifest = getIndexRoot().resolve(PARTITIONS_MANIFEST);
+        Path tmp = getIndexRoot().resolve(PARTITIONS_MANIFEST + ".tmp");
+
+        FilesUtils.writeString(tmp, sb.toString());
+        Files.move(tmp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // The manifest names every type, the older pointer files are no
+        // longer read.
+        //
+        for (IndexPartition it : partitions) {
+            Files.deleteIfExists(getIndexRoot().resolve(it.getModelType().getModelName() + ".current"));
+        }
+    }
+
+    /**
+     * Deletes the directories of partitions replaced by a rebuild, and of
+     * rebuilds that did not complete.
+     */
+    private void deleteRetiredDirectories() throws IOException {
+        for (IndexPartition partition : partitions) {
+            String name = partition.getModelType().getModelName();
+
+            try (DirectoryStream<Path> dirs = Files.newDirectoryStream(getIndexRoot(),
+                    it -> Files.isDirectory(it) && !it.equals(partition.getPath())
+                            && (it.getFileName().toString().equals(name)
+                                    || it.getFileName().toString().startsWith(name + "-")))) {
+                for (Path it : dirs) {
+                    log.info("Deleting retired index {}", it);
+                    deleteDirectory(it);
+                }
+            }
+        }
+    }
+
+    private static void deleteDirectory(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path it : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(it);
+            }
+        }
+    }
+
+    /**
+     * Starts a full rebuild of model types into new partitions. See
+     * {@link IndexRebuild}.
+     * 
+     * @param types
+     *            The model classes rebuilt.
+     * @return The rebuild. Swap or abort it.
+     * @throws IOException
+     */
+    public IndexRebuild beginRebuild(Class<?>... types) throws IOException {
+        String buildId = Uids.newUID().replaceAll("[^A-Za-z0-9]", "");
+        IndexPartition[] shadows = new IndexPartition[partitions.length];
+        IndexRebuild rebuild = new IndexRebuild(this, buildId, shadows);
+
+        // Record the writes to the live partitions from now on.
+        //
         synchronized (this) {
-            try {
-                // Decrease reference count. If 0 the search is kept open for
-                // the next call.
-                //
-                searcher.decRefCount();
+            IndexRebuild[] next = rebuilds.clone();
 
-            } catch (IOException e) {
-                throw new BeanException(e);
+            for (Class<?> type : types) {
+                IndexPartition live = partition(type);
+
+                if (next[live.ordinal] != null) {
+                    throw Validate.notAllowed(
+                            Msgs.format("{} is already being rebuilt", live.getModelType().getModelName()));
+                }
+
+                next[live.ordinal] = rebuild;
+            }
+
+            rebuilds = next;
+        }
+
+        try {
+            for (Class<?> type : types) {
+                IndexPartition live = partition(type);
+                ModelType modelType = live.getModelType();
+                Path path = getIndexRoot().resolve(modelType.getModelName() + "-" + buildId);
+
+                log.info("Rebuilding {} into {}", modelType.getModelName(), path);
+
+                shadows[live.ordinal] = newPartition(live.ordinal, modelType, path);
+                shadows[live.ordinal].start();
+            }
+
+        } catch (IOException | RuntimeException e) {
+            discardPartitions(rebuild);
+            throw e;
+        }
+
+        return rebuild;
+    }
+
+    /**
+     * Begins a write to the live partitions. Waits while a rebuild is swapped
+     * in.
+     */
+    void beginWrite() {
+        swapLock.readLock().lock();
+    }
+
+    void endWrite() {
+        swapLock.readLock().unlock();
+    }
+
+    /**
+     * Records the write of a document to a live partition, for the rebuild of
+     * the partition if there is one. Called between beginWrite() and
+     * endWrite().
+     */
+    void recordWrite(IndexPartition partition, String id) {
+        IndexRebuild rebuild = rebuilds[partition.ordinal];
+
+        if (rebuild != null) {
+            rebuild.recordWrite(partition.ordinal, id);
+        }
+    }
+
+    /**
+     * Records a delete from a live partition. See
+     * {@link #recordWrite(IndexPartition, String)}.
+     */
+    void recordDelete(IndexPartition partition, Query query) {
+        IndexRebuild rebuild = rebuilds[partition.ordinal];
+
+        if (rebuild != null) {
+            rebuild.recordDelete(partition.ordinal, query);
+        }
+    }
+
+    private synchronized void endRebuild(IndexRebuild rebuild) {
+        IndexRebuild[] next = rebuilds.clone();
+
+        for (int i = 0; i != next.length; i++) {
+            if (next[i] == rebuild) {
+                next[i] = null;
             }
         }
+
+        rebuilds = next;
     }
 
-    private void tearDownReader() {
+    /**
+     * Replaces the live partitions with the partitions of a rebuild and
+     * publishes a reader onto them. Readers using the previous partitions keep
+     * them until released.
+     * 
+     * Writes to the live partitions are held off during the swap. The writes
+     * made to the previous partitions while the rebuild ran are replayed onto
+     * the new partitions first: the documents written are copied over as they
+     * are in the live index, and the deletes are repeated.
+     */
+    void swapPartitions(IndexRebuild rebuild) throws IOException {
+        IndexPartition[] shadows = rebuild.shadows();
+        List<IndexPartition> replaced = new ArrayList<>();
+
+        swapLock.writeLock().lock();
+
+        try {
+            // Read the live documents including the latest writes.
+            //
+            refreshReader(true);
+
+            try (Statement live = getStatement()) {
+                rebuild.replayWrites(live);
+            }
+
+            // Make the rebuilt documents durable before they become current.
+            //
+            for (IndexPartition it : shadows) {
+                if (it != null) {
+                    it.commitWrites();
+                }
+            }
+
+            swapLocked(shadows, replaced);
+            endRebuild(rebuild);
+
+        } finally {
+            swapLock.writeLock().unlock();
+        }
 
+        for (IndexPartition it : replaced) {
+            log.info("Index {} replaced by {}", it.getPath(), rebuild.getBuildId());
+
+            try {
+                it.stop();
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            it.retire();
+        }
+    }
+
+    private void swapLocked(IndexPartition[] shadows, List<IndexPartition> replaced) throws IOException {
         synchronized (this) {
-            // Create a new IndexReader/Search combo.
-            // If we have an existing object, set it to close down when ref
-            // count reaches zero.
+            IndexPartition[] next = partitions.clone();
+            Map<Class<?>, IndexPartition> nextByClass = new IdentityHashMap<>(partitionsByClass);
+
+            for (IndexPartition it : shadows) {
+                if (it != null) {
+                    replaced.add(next[it.ordinal]);
+                    next[it.ordinal] = it;
+                    nextByClass.put(it.getModelType().getModelClass(), it);
+                }
+            }
+
+            setPartitionPaths(next);
+
+            partitions = next;
+            partitionsByClass = nextByClass;
+
+            // Publish a reader onto the new partitions, sharing the readers of
+            // the other partitions.
             //
-            if (sharedIndexReader != null) {
+            SharedLuceneReader current = sharedIndexReader.get();
+
+            if (current != null) {
+                DirectoryReader[] readers = current.partitionReaders().clone();
+                DirectoryReader[] opened = new DirectoryReader[next.length];
+
+                for (IndexPartition it : shadows) {
+                    if (it != null) {
+                        readers[it.ordinal] = opened[it.ordinal] = it.openReader();
+                    }
+                }
+
+                publishReader(readers, opened);
+            }
+
+            retiredPartitions.addAll(replaced);
+        }
+    }
+
+    /**
+     * Discards the partitions of a rebuild.
+     */
+    void discardPartitions(IndexRebuild rebuild) throws IOException {
+        endRebuild(rebuild);
+
+        for (IndexPartition it : rebuild.shadows()) {
+            if (it != null) {
                 try {
-                    sharedIndexReader.forceCloseDown();
+                    it.stop();
 
-                } catch (IOException e) {
-                    throw new BeanException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
 
-                // Clear the reader so that we create a new one.
+                it.close();
+                deleteDirectory(it.getPath());
+            }
+        }
+    }
+
+    /**
+     * Splits an index holding all the types, written before partitions were
+     * introduced, into the partitions. The old index is only removed once
+     * all the partitions have committed and the marker file is written, so
+     * the import is redone on the next start if the process stops part way.
+     */
+    private void importUnpartitionedIndex() throws IOException {
+        Path marker = getIndexRoot().resolve(IMPORTED_MARKER);
+
+        try (Directory dir = createDirectory(getIndexRoot())) {
+            if (!Files.exists(marker)) {
+                if (!DirectoryReader.indexExists(dir)) {
+                    return;
+                }
+
+                log.info("Splitting the index {} into partitions", getIndexRoot());
+
+                // Each partition replaces the documents of a previous attempt.
                 //
-                sharedIndexReader = null;
+                try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                    for (IndexPartition it : partitions) {
+                        it.importDocuments(reader);
+                    }
+                }
+
+                FilesUtils.writeString(marker, "");
+            }
+
+            // The partitions are committed. Remove the files of the old index,
+            // leaving the partition directories and pointer files. A crash
+            // while deleting leaves the marker, and the deletion is finished
+            // on the next start. The commit points go first, so that a
+            // partly deleted index is never imported again.
+            //
+            for (String it : dir.listAll()) {
+                if (it.startsWith(IndexFileNames.SEGMENTS) || it.startsWith(IndexFileNames.PENDING_SEGMENTS)) {
+                    dir.deleteFile(it);
+                }
             }
+
+            for (String it : dir.listAll()) {
+                if (it.equals(IndexWriter.WRITE_LOCK_NAME) || IndexFileNames.CODEC_FILE_PATTERN.matcher(it).matches()) {
+                    dir.deleteFile(it);
+                }
+            }
+
+            Files.delete(marker);
+            log.info("Removed the index {}", getIndexRoot());
         }
     }
 
@@ -274,15 +1163,98 @@ public class LuceneIndex implements Startable {
     }
 
     public void start(BeanContainer container) throws Exception {
+        cache.setMaxEntries(objectCacheMaxEntries);
+        queryCache.setMaxEntries(queryCacheMaxEntries);
+        pageCache.setMaxKB(pageCacheMaxKB);
+
+        if (searchThreads > 0) {
+            SlicedIndexSearcher.maxDocsPerSlice = searchSliceMaxDocs;
+            SlicedIndexSearcher.maxSegmentsPerSlice = searchSliceMaxSegments;
+            searchExecutor = createSearchExecutor();
+        }
+
+        if (facetThreads > 0) {
+            facetPool = createFacetPool();
+        }
+
+        createPartitions();
+        deleteRetiredDirectories();
+        importUnpartitionedIndex();
+
+        for (IndexPartition it : partitions) {
+            it.start();
+        }
+
+        if (mergeIdleMs > 0) {
+            idleMerger = new IdleMerger(this, mergeIdleMs, mergeIdleCheckMs, mergeDeletesPctAllowed);
+            idleMerger.start();
+        }
     }
 
     public void stop(BeanContainer container) throws Exception {
+        if (idleMerger != null) {
+            idleMerger.stop();
+            idleMerger = null;
+        }
+
+        // Commit the pending writes.
+        //
+        for (IndexPartition it : partitions) {
+            it.stop();
+        }
+
+        synchronized (this) {
+            SharedLuceneReader reader = sharedIndexReader.getAndSet(null);
+
+            if (reader != null) {
+                reader.forceCloseDown();
+            }
+
+            for (IndexPartition it : partitions) {
+                it.close();
+            }
+
+            for (IndexPartition it : retiredPartitions) {
+                it.getDirectory().close();
+            }
+            retiredPartitions.clear();
+        }
+
+        if (searchExecutor != null) {
+            searchExecutor.shutdown();
+            searchExecutor = null;
+        }
+
+        if (facetPool != null) {
+            facetPool.shutdown();
+            facetPool = null;
+        }
     }
 
-    public final ICache<Object> getCache() {
+    public final ObjectCache getCache() {
         return cache;
     }
 
+    public final QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    public final ResultPageCache getPageCache() {
+        return pageCache;
+    }
+
+    public final FacetCountsCache getFacetCountsCache() {
+        return facetCountsCache;
+    }
+
+    /**
+     * Returns true if objects are stored using {@link BinaryObjectCodec}
+     * rather than json.
+     */
+    public final boolean isBinaryObjectCodec() {
+        return "binary".equals(objectCodec);
+    }
+
     public final IndexModels models() {
         return models;
     }
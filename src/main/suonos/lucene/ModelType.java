@@ -68,6 +68,33 @@ public class ModelType {
      */
     private FieldInfo[] dynamicFields;
 
+    /**
+     * Binary layout of the model class. Null if the class cannot be encoded by
+     * {@link BinaryObjectCodec}.
+     */
+    private ObjectSchema schema;
+    private volatile boolean schemaBuilt;
+
+    /**
+     * Named views, the field names of a {@link Projection}. Declared in
+     * models.xml.
+     */
+    private Map<String, String[]> views = AntLib.newHashMap();
+
+    /**
+     * The field whose "_s" value is the browse key of the model, written to
+     * the sort$ doc value of the index sort. The first filterable field, eg
+     * MusicAlbum#title. Null if the model has none.
+     */
+    private ModelField sortKeyField;
+
+    /**
+     * Commit policy of the index partition of the model. 0 to use the
+     * settings. See {@link IndexPartition}.
+     */
+    int commitMaxLatencyMs;
+    int commitMaxPendingDocs;
+
     /**
      * Reflection field, link between reflection and lucene field.
      * 
@@ -120,6 +147,48 @@ public class ModelType {
         return modelClass;
     }
 
+    /**
+     * Gets the binary layout of the model class, used for encoding and
+     * decoding the obj$ field. The class is encoded as json if the schema is
+     * not encodable, see {@link ObjectSchema#isEncodable()}.
+     * 
+     * @return The schema or null if the class has no no argument constructor.
+     */
+    public ObjectSchema getSchema() {
+        if (!schemaBuilt) {
+            schema = ObjectSchema.forClass(modelClass);
+            schemaBuilt = true;
+        }
+        return schema;
+    }
+
+    void addView(String name, String[] fields) {
+        views.put(name, fields);
+    }
+
+    /**
+     * Gets the field names of a view.
+     * 
+     * @param name
+     *            The view name. Eg "list".
+     * @return The field names or null if the model has no such view.
+     */
+    public String[] getView(String name) {
+        return views.get(name);
+    }
+
+    /**
+     * Gets the field sorted in index order within the documents of the model.
+     * A query for the model sorted on this field ascending matches the index
+     * sort. See {@link LuceneIndex#getIndexSort()}.
+     * 
+     * @return The name of the "_s" doc value field. Eg "album_title_s". Null if
+     *         the model has no browse key.
+     */
+    public String getSortKeyFieldName() {
+        return sortKeyField == null ? null : sortKeyField.indexedField.getName().concat("_s");
+    }
+
     public ModelField getModelField(String fieldName) {
         return fieldsMap.get(fieldName);
     }
@@ -193,6 +262,10 @@ public class ModelType {
                 ModelField modelField = new ModelField(mf, luceneField);
                 fieldsMap.put(mf.getName(), modelField);
                 indexedFields.add(modelField);
+
+                if (sortKeyField == null && luceneField.isFilterable()) {
+                    sortKeyField = modelField;
+                }
             }
         }
 
@@ -203,11 +276,12 @@ public class ModelType {
     public void saveToLuceneDoc(final StatementContext context, final StoreObject object, final Document doc) {
 
         final IndexModels models = context.models();
+        final FieldPool pool = context.fieldPool();
 
         for (ModelField it : modelFields) {
             // Get the value from the bean.
             //
-            addFieldToDoc(doc, models, it.indexedField, it.field.callGetter(object));
+            addFieldToDoc(doc, models, pool, it.indexedField, it.field.callGetter(object));
         }
 
         // Setup a context for the dynamic indexable fields.
@@ -221,7 +295,7 @@ public class ModelType {
             }
             IndexedField fld = models.getIndexedField(name);
             if (fld != null) {
-                addFieldToDoc(doc, models, fld, value);
+                addFieldToDoc(doc, models, pool, fld, value);
             }
         };
 
@@ -239,6 +313,16 @@ public class ModelType {
         if (object instanceof DynamicIndexedFields) {
             ((DynamicIndexedFields) object).indexFields(ctx);
         }
+
+        // Browse key for the index sort. The same value as the "_s" field.
+        //
+        if (sortKeyField != null) {
+            String key = getSortKey(sortKeyField.field.callGetter(object));
+
+            if (key != null) {
+                doc.add(context.sort$_field(key));
+            }
+        }
     }
 
     public String getAbbrevName() {
@@ -249,12 +333,13 @@ public class ModelType {
         return dynamicFields;
     }
 
-    private void addFieldToDoc(Document doc, IndexModels models, IndexedField indexedField, Object val) {
+    private void addFieldToDoc(Document doc, IndexModels models, FieldPool pool, IndexedField indexedField,
+            Object val) {
 
         if (val == null)
             return;
 
-        Field fld = indexedField.createField(val);
+        Field fld = pool.createField(indexedField, val);
         addToDoc(doc, fld);
 
         // Somewhat of a kludge!!!!
@@ -280,7 +365,7 @@ public class ModelType {
         // used for different purposes.
         //
         if (indexedField.isIndexed() && indexedField.isDocValues()) {
-            fld = indexedField.createDocValueField(indexedField.getName(), val);
+            fld = pool.createDocValueField(indexedField, indexedField.getName(), val);
             addToDoc(doc, fld);
 
             // Add the field value as untokenised. Used for querying all
@@ -288,7 +373,7 @@ public class ModelType {
             // Eg: All albums for genre "Classical"
             //
             IndexedField ndxField = models.getIndexedField(indexedField.getName().concat("_u"));
-            fld = ndxField.createField(filter_val);
+            fld = pool.createField(ndxField, filter_val);
             addToDoc(doc, fld);
         }
 
@@ -317,7 +402,7 @@ public class ModelType {
                 // Sorting on tokens that are only 4 letters in length is more
                 // efficient than sorting on the full length.
                 //
-                fld = indexedField.createDocValueField(filterFieldName, filterValue);
+                fld = pool.createDocValueField(indexedField, filterFieldName, filterValue);
                 addToDoc(doc, fld);
 
                 // field_a (DocValue) and (Field)
@@ -329,7 +414,7 @@ public class ModelType {
 
                 // Create DocField for faceting
                 //
-                fld = indexedField.createDocValueField(filterFieldName, filterValue);
+                fld = pool.createDocValueField(indexedField, filterFieldName, filterValue);
                 addToDoc(doc, fld);
 
                 // Get the IndexedField - field_a
@@ -340,7 +425,7 @@ public class ModelType {
                 // /api/albums?q=title_a=B (find all albums beginning with the
                 // letter "B")
                 //
-                fld = ndxField.createField(filterValue);
+                fld = pool.createField(ndxField, filterValue);
                 addToDoc(doc, fld);
 
                 // Should we add a new field - artist_e (untokenised token) for
@@ -354,6 +439,14 @@ public class ModelType {
         doc.add(f);
     }
 
+    /**
+     * The value of the "_s" field of a filterable field: the first 4
+     * characters of the filter value.
+     */
+    private String getSortKey(Object value) {
+        return StringUtils.left((String) getFilterValue(value), 4);
+    }
+
     private Object getFilterValue(Object value) {
 
         if (value == null || value.getClass() != String.class)
@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.am0e.commons.msgs.Msgs;
+
+import suonos.models.annotations.Threaded;
+
+/**
+ * Cache of the objects of documents, indexed by the document id. The values
+ * are the decoded objects, see {@link Statement#getDoc(int)}, so the stored
+ * field is read, uncompressed and decoded once per reader.
+ *
+ * Document ids are only valid for the reader they were obtained from, so each
+ * entry records the generation (version) of the reader. When
+ * {@link LuceneIndex} publishes a new reader the cache is invalidated.
+ *
+ * The cache is split into shards, each an LRU map guarded by its own lock, so
+ * that threads reading different documents do not contend.
+ *
+ * Cached values are shared between threads and must not be modified. Model
+ * objects are mutable (relations such as the tracks of an album are set on
+ * them per request), so the cached object is never handed out: each get
+ * returns a copy, see {@link ObjectSchema#copy(Object)}, which is much cheaper
+ * than decoding the json or binary obj$ field again.
+ *
+ * The hit, miss and eviction counts are returned by /ws/cache-stats.
+ *
+ * @author anthony
+ */
+@Threaded
+public final class ObjectCache {
+
+    private static final int SHARDS = 16;
+
+    private static final class Entry {
+        final long generation;
+        final Object obj;
+
+        Entry(long generation, Object obj) {
+            this.generation = generation;
+            this.obj = obj;
+        }
+    }
+
+    private final class Shard extends LinkedHashMap<Integer, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        Shard() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+            if (size() > maxEntriesPerShard) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private volatile int maxEntriesPerShard;
+    private volatile long generation = -1;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ObjectCache(int maxEntries) {
+        for (int i = 0; i != SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+        setMaxEntries(maxEntries);
+    }
+
+    /**
+     * Sets the maximum number of objects held by the cache. 0 disables the
+     * cache.
+     *
+     * @param maxEntries
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntriesPerShard = (maxEntries + SHARDS - 1) / SHARDS;
+        invalidate(generation);
+    }
+
+    public boolean isEnabled() {
+        return maxEntriesPerShard > 0;
+    }
+
+    /**
+     * Gets an object.
+     *
+     * @param generation
+     *            The version of the reader the document id belongs to.
+     * @param docId
+     *            The document id.
+     * @return The cached object or null.
+     */
+    public Object get(long generation, int docId) {
+        Shard shard = shard(docId);
+        Entry e;
+
+        synchronized (shard) {
+            e = shard.get(docId);
+        }
+
+        if (e != null && e.generation == generation) {
+            hits.incrementAndGet();
+            return e.obj;
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Adds an object. Ignored if the generation is not the current one, ie a
+     * thread still using a reader that has since been replaced.
+     *
+     * @param generation
+     *            The version of the reader the document id belongs to.
+     * @param docId
+     *            The document id.
+     * @param obj
+     *            The value. Must be immutable.
+     */
+    public void put(long generation, int docId, Object obj) {
+        if (generation != this.generation || maxEntriesPerShard == 0) {
+            return;
+        }
+
+        Shard shard = shard(docId);
+
+        synchronized (shard) {
+            shard.put(docId, new Entry(generation, obj));
+        }
+    }
+
+    /**
+     * Drops all the objects and sets the current generation. Called when a new
+     * reader is published.
+     *
+     * @param generation
+     *            The version of the new reader.
+     */
+    public void invalidate(long generation) {
+        this.generation = generation;
+
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.clear();
+            }
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                size += shard.size();
+            }
+        }
+        return size;
+    }
+
+    private Shard shard(int docId) {
+        return shards[docId & (SHARDS - 1)];
+    }
+
+    @Override
+    public String toString() {
+        return Msgs.format("size={} hits={} misses={} evictions={}", size(), hits(), misses(), evictions());
+    }
+}
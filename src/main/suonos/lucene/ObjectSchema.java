@@ -0,0 +1,421 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.am0e.commons.AntLib;
+import com.github.am0e.commons.msgs.Msgs;
+import com.github.am0e.commons.utils.Validate;
+
+import suonos.models.annotations.BinaryField;
+import suonos.models.annotations.Threaded;
+import suonos.models.media.MediaTagValue;
+import suonos.models.media.MediaTagValues;
+
+/**
+ * The binary layout of a serialized class, used by {@link BinaryObjectCodec}.
+ * The schema is built once per class from the same fields the json serializer
+ * writes: all the non static, non transient fields of the class and its super
+ * classes.
+ *
+ * Each field is identified by a number derived from the field name, or given
+ * with {@link BinaryField}, so fields can be added or removed from a class
+ * without breaking the documents already in the index: unknown numbers are
+ * skipped and missing fields keep their default value.
+ *
+ * A schema is built for every class with a no argument constructor, so that
+ * the documents already encoded can always be decoded. Fields that cannot be
+ * encoded are left out of the schema, and the class is then serialized as
+ * json, see {@link #isEncodable()}.
+ *
+ * @author anthony
+ */
+@Threaded
+public final class ObjectSchema {
+
+    /**
+     * The value kinds that can be encoded.
+     */
+    enum Kind {
+        STRING, INT, LONG, BOOLEAN, DOUBLE, FLOAT, DATE, ENUM, TAGS, LIST, OBJECT
+    }
+
+    /**
+     * A field of the schema.
+     */
+    static final class SchemaField {
+        final Field field;
+        final int number;
+        final Kind kind;
+
+        /**
+         * For LIST: the element kind. For OBJECT: Kind.OBJECT.
+         */
+        final Kind elementKind;
+
+        /**
+         * For LIST and OBJECT: the class of the element/object.
+         */
+        final Class<?> elementType;
+
+        SchemaField(Field field, int number, Kind kind, Kind elementKind, Class<?> elementType) {
+            this.field = field;
+            this.number = number;
+            this.kind = kind;
+            this.elementKind = elementKind;
+            this.elementType = elementType;
+        }
+    }
+
+    private static final ConcurrentHashMap<Class<?>, ObjectSchema> schemas = new ConcurrentHashMap<>();
+
+    final Class<?> type;
+    final SchemaField[] fields;
+    private final int[] numbers;
+    private final Constructor<?> ctor;
+
+    /**
+     * False if fields of the class were left out of the schema.
+     */
+    private final boolean complete;
+
+    /**
+     * Set on the first call to {@link #isEncodable()}.
+     */
+    private volatile Boolean encodable;
+
+    /**
+     * Gets the schema for a class. The schema is built on the first call. The
+     * schemas of the nested classes are built when first used, so a class can
+     * hold a field of its own type.
+     *
+     * @param type
+     *            The class.
+     * @return The schema or null if the class has no no argument constructor.
+     *         Fails if two fields of the class have the same number.
+     */
+    public static ObjectSchema forClass(Class<?> type) {
+        ObjectSchema schema = schemas.get(type);
+
+        if (schema == null) {
+            schema = build(type);
+
+            if (schema != null) {
+                ObjectSchema cur = schemas.putIfAbsent(type, schema);
+
+                if (cur != null) {
+                    schema = cur;
+                }
+            }
+        }
+
+        return schema;
+    }
+
+    private ObjectSchema(Class<?> type, Constructor<?> ctor, SchemaField[] fields, boolean complete) {
+        this.type = type;
+        this.ctor = ctor;
+        this.complete = complete;
+
+        // Sort by number so that fields can be found using a binary search.
+        //
+        Arrays.sort(fields, (a, b) -> Integer.compare(a.number, b.number));
+
+        this.fields = fields;
+        this.numbers = new int[fields.length];
+
+        for (int i = 0; i != fields.length; i++) {
+            numbers[i] = fields[i].number;
+        }
+    }
+
+    /**
+     * Returns true if objects of the class can be encoded: every field of the
+     * class and of the nested classes is in a schema. Otherwise the objects
+     * are serialized as json, and the documents already encoded can still be
+     * decoded.
+     */
+    public boolean isEncodable() {
+        Boolean res = encodable;
+
+        if (res == null) {
+            encodable = res = isEncodable(new HashSet<>());
+        }
+
+        return res;
+    }
+
+    private boolean isEncodable(Set<Class<?>> visited) {
+        if (!complete) {
+            return false;
+        }
+
+        // A class nested in itself is checked once.
+        //
+        if (!visited.add(type)) {
+            return true;
+        }
+
+        for (SchemaField f : fields) {
+            if (f.elementKind == Kind.OBJECT) {
+                ObjectSchema nested = forClass(f.elementType);
+
+                if (nested == null || !nested.isEncodable(visited)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    Object newInstance() {
+        try {
+            return ctor.newInstance();
+
+        } catch (ReflectiveOperationException e) {
+            throw Validate.notAllowed(Msgs.format("Cannot create {}: {}", type, e));
+        }
+    }
+
+    /**
+     * Copies an object field by field, so the copy has the same state as an
+     * object decoded from the same document. Strings, boxed values and enums
+     * are shared, dates, lists, tag values and nested objects are copied.
+     * Transient fields keep the value set by the constructor. The schema must
+     * be encodable, see {@link #isEncodable()}.
+     *
+     * @param obj
+     *            The object. Not modified, so it can be copied by several
+     *            threads at once.
+     * @return The copy.
+     */
+    Object copy(Object obj) {
+        Object res = newInstance();
+
+        try {
+            for (SchemaField f : fields) {
+                Object val = f.field.get(obj);
+
+                if (val != null) {
+                    f.field.set(res, copyValue(f.kind, f, val));
+                }
+            }
+
+        } catch (IllegalAccessException e) {
+            throw Validate.notAllowed(Msgs.format("Cannot copy {}: {}", type, e));
+        }
+
+        return res;
+    }
+
+    private static Object copyValue(Kind kind, SchemaField f, Object val) {
+        switch (kind) {
+        case DATE:
+            return new Date(((Date) val).getTime());
+
+        case TAGS:
+            List<MediaTagValue> values = AntLib.newList();
+
+            for (MediaTagValue it : (MediaTagValues) val) {
+                MediaTagValue copy = (MediaTagValue) forClass(it.getClass()).copy(it);
+
+                if (it.getMediaTagDef() != null) {
+                    copy.setTag(it.getMediaTagDef());
+                }
+
+                values.add(copy);
+            }
+
+            return new MediaTagValues(values);
+
+        case LIST:
+            List<Object> list = AntLib.newList();
+
+            for (Object it : (List<?>) val) {
+                list.add(it == null ? null : copyValue(f.elementKind, f, it));
+            }
+
+            return list;
+
+        case OBJECT:
+            return forClass(f.elementType).copy(val);
+
+        default:
+            return val;
+        }
+    }
+
+    SchemaField getField(int number) {
+        int ndx = Arrays.binarySearch(numbers, number);
+        return ndx < 0 ? null : fields[ndx];
+    }
+
+    /**
+     * The field number: the number given with {@link BinaryField}, else a
+     * positive number derived from the field name. It is shifted left by 3
+     * bits when written, leaving room for the wire type.
+     */
+    static int fieldNumber(Field f) {
+        BinaryField ann = f.getAnnotation(BinaryField.class);
+
+        if (ann == null) {
+            return fieldNumber(f.getName());
+        }
+
+        if (ann.value() <= 0 || ann.value() > 0x0FFFFFFF) {
+            throw Validate.notAllowed(Msgs.format("Field {} has an invalid number {}", f, ann.value()));
+        }
+
+        return ann.value();
+    }
+
+    static int fieldNumber(String name) {
+        return name.hashCode() & 0x0FFFFFFF;
+    }
+
+    private static ObjectSchema build(Class<?> type) {
+        Constructor<?> ctor;
+
+        try {
+            ctor = type.getDeclaredConstructor();
+            ctor.setAccessible(true);
+
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+
+        List<SchemaField> fields = AntLib.newList();
+        boolean complete = true;
+
+        for (Class<?> it = type; it != null && it != Object.class; it = it.getSuperclass()) {
+            for (Field f : it.getDeclaredFields()) {
+                int mod = f.getModifiers();
+
+                if (Modifier.isStatic(mod) || Modifier.isTransient(mod) || f.isSynthetic()) {
+                    continue;
+                }
+
+                SchemaField sf = buildField(f);
+
+                if (sf == null) {
+                    // Not supported. The class is serialized as json, the
+                    // other fields of the documents already encoded are read.
+                    //
+                    Statement.log.debug("Field {} of {} cannot be encoded", f.getName(), type);
+                    complete = false;
+                    continue;
+                }
+
+                // Leaving out either field would lose its value in the
+                // documents already encoded.
+                //
+                for (SchemaField other : fields) {
+                    if (other.number == sf.number) {
+                        throw Validate.notAllowed(Msgs.format(
+                                "Fields {} and {} of {} have the same number, number one of them with @BinaryField",
+                                other.field.getName(), f.getName(), type));
+                    }
+                }
+
+                fields.add(sf);
+            }
+        }
+
+        return new ObjectSchema(type, ctor, fields.toArray(new SchemaField[0]), complete);
+    }
+
+    private static SchemaField buildField(Field f) {
+        f.setAccessible(true);
+
+        int number = fieldNumber(f);
+        Class<?> t = f.getType();
+        Kind kind = getKind(t);
+
+        if (kind == null) {
+            return null;
+        }
+
+        if (kind == Kind.LIST) {
+            Type gt = f.getGenericType();
+
+            if (gt instanceof ParameterizedType == false) {
+                return null;
+            }
+
+            Type arg = ((ParameterizedType) gt).getActualTypeArguments()[0];
+
+            if (arg instanceof Class == false) {
+                return null;
+            }
+
+            Class<?> elementType = (Class<?>) arg;
+            Kind elementKind = getKind(elementType);
+
+            if (elementKind == null || elementKind == Kind.LIST || elementKind == Kind.TAGS) {
+                return null;
+            }
+
+            return new SchemaField(f, number, kind, elementKind, elementType);
+        }
+
+        if (kind == Kind.OBJECT) {
+            return new SchemaField(f, number, kind, kind, t);
+        }
+
+        return new SchemaField(f, number, kind, null, t);
+    }
+
+    private static Kind getKind(Class<?> t) {
+        if (t == String.class)
+            return Kind.STRING;
+        if (t == int.class || t == Integer.class)
+            return Kind.INT;
+        if (t == long.class || t == Long.class)
+            return Kind.LONG;
+        if (t == boolean.class || t == Boolean.class)
+            return Kind.BOOLEAN;
+        if (t == double.class || t == Double.class)
+            return Kind.DOUBLE;
+        if (t == float.class || t == Float.class)
+            return Kind.FLOAT;
+        if (t == Date.class)
+            return Kind.DATE;
+        if (t.isEnum())
+            return Kind.ENUM;
+        if (t == MediaTagValues.class)
+            return Kind.TAGS;
+        if (t == List.class)
+            return Kind.LIST;
+        if (t.isArray() || t.isInterface() || t.isPrimitive() || Modifier.isAbstract(t.getModifiers())
+                || t.getName().startsWith("java."))
+            return null;
+
+        return Kind.OBJECT;
+    }
+}
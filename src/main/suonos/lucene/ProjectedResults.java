@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+import com.github.am0e.commons.AntLib;
+import com.github.am0e.commons.utils.Validate;
+
+import suonos.lucene.fields.IndexedField;
+import suonos.services.ServiceException;
+
+/**
+ * Results of a query run with a {@link Projection}. Each hit is returned as a
+ * {@link ProjectedRow} read from the doc values and stored fields of the
+ * document, no model object is built.
+ *
+ * @author anthony
+ */
+public class ProjectedResults implements Iterable<ProjectedRow> {
+    private final Projection projection;
+    private final TopDocs docs;
+    private final List<LeafReaderContext> leaves;
+    private final long generation;
+
+    private class ProjectedResultsIterator implements Iterator<ProjectedRow> {
+        int pos = 0;
+
+        public boolean hasNext() {
+            return pos < docs.scoreDocs.length;
+        }
+
+        @Override
+        public ProjectedRow next() {
+            if (pos >= docs.scoreDocs.length)
+                return null;
+
+            try {
+                return get(pos++);
+
+            } catch (IOException e) {
+                throw new ServiceException(e);
+            }
+        }
+    }
+
+    public ProjectedResults(Statement stmt, Projection projection, TopDocs docs) {
+        this.projection = projection;
+        this.docs = docs;
+        this.leaves = stmt.indexReader().leaves();
+        this.generation = stmt.readerGeneration();
+    }
+
+    public Projection getProjection() {
+        return projection;
+    }
+
+    public int totalHits() {
+        return docs.totalHits;
+    }
+
+    public ScoreDoc lastScore() {
+        if (docs.scoreDocs.length > 0 && docs.scoreDocs.length < docs.totalHits) {
+            return docs.scoreDocs[docs.scoreDocs.length - 1];
+        } else {
+            return null;
+        }
+    }
+
+    public String lastScoreToken() {
+        ScoreDoc lastScore = lastScore();
+        if (lastScore != null) {
+            return IndexUtils.buildLastScoreToken(lastScore, generation);
+        }
+        return null;
+    }
+
+    public ProjectedRow get(int pos) throws IOException {
+        if (pos >= docs.scoreDocs.length) {
+            throw Validate.illegalArgument("pos");
+        }
+
+        // Find the segment holding the document.
+        //
+        int docId = docs.scoreDocs[pos].doc;
+        LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+        LeafReader reader = leaf.reader();
+        int doc = docId - leaf.docBase;
+
+        // Load the stored fields in one go.
+        //
+        Document stored = null;
+
+        if (!projection.storedFields.isEmpty()) {
+            DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(projection.storedFields);
+            reader.document(doc, visitor);
+            stored = visitor.getDocument();
+        }
+
+        Object[] values = new Object[projection.size()];
+
+        for (int i = 0; i != values.length; i++) {
+            IndexedField fld = projection.fields[i];
+
+            if (fld.isDocValues()) {
+                values[i] = readDocValue(reader, fld, doc);
+            } else {
+                values[i] = readStoredValue(stored, fld);
+            }
+        }
+
+        return new ProjectedRow(projection, values);
+    }
+
+    private Object readDocValue(LeafReader reader, IndexedField fld, int doc) throws IOException {
+        String name = fld.getName();
+        FieldInfo info = reader.getFieldInfos().fieldInfo(name);
+
+        // The segment has no document with the field.
+        //
+        if (info == null) {
+            return null;
+        }
+
+        switch (info.getDocValuesType()) {
+        case SORTED_SET: {
+            SortedSetDocValues dv = reader.getSortedSetDocValues(name);
+            List<String> list = AntLib.newList();
+            long ord;
+
+            dv.setDocument(doc);
+
+            while ((ord = dv.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+                list.add(dv.lookupOrd(ord).utf8ToString());
+            }
+
+            return list;
+        }
+
+        case SORTED: {
+            SortedDocValues dv = reader.getSortedDocValues(name);
+            int ord = dv.getOrd(doc);
+            return ord < 0 ? null : dv.lookupOrd(ord).utf8ToString();
+        }
+
+        case SORTED_NUMERIC: {
+            SortedNumericDocValues dv = reader.getSortedNumericDocValues(name);
+            dv.setDocument(doc);
+
+            if (dv.count() == 0) {
+                return null;
+            }
+
+            return toJavaType(fld, dv.valueAt(0));
+        }
+
+        case NUMERIC:
+            return toJavaType(fld, reader.getNumericDocValues(name).get(doc));
+
+        default:
+            return null;
+        }
+    }
+
+    private Object readStoredValue(Document stored, IndexedField fld) {
+        if (fld.isMultiValue()) {
+            List<String> list = AntLib.newList();
+
+            for (String it : stored.getValues(fld.getName())) {
+                list.add(it);
+            }
+
+            return list;
+        }
+
+        IndexableField field = stored.getField(fld.getName());
+
+        if (field == null) {
+            return null;
+        }
+
+        if (field.numericValue() != null) {
+            return toJavaType(fld, field.numericValue().longValue());
+        }
+
+        // Booleans are stored as "1" and "0". See IndexedField.
+        //
+        if (fld.getType() == Boolean.class) {
+            return "1".equals(field.stringValue());
+        }
+
+        return field.stringValue();
+    }
+
+    private Object toJavaType(IndexedField fld, long val) {
+        Class<?> type = fld.getType();
+
+        if (type == Date.class)
+            return new Date(val);
+        if (type == Integer.class)
+            return (int) val;
+
+        return val;
+    }
+
+    @Override
+    public Iterator<ProjectedRow> iterator() {
+        return new ProjectedResultsIterator();
+    }
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+/**
+ * A row of {@link ProjectedResults}. Holds the values of the fields of the
+ * {@link Projection} for one document. Multi value fields are returned as a
+ * list of strings.
+ *
+ * @author anthony
+ */
+public final class ProjectedRow {
+    private final Projection projection;
+    private final Object[] values;
+
+    ProjectedRow(Projection projection, Object[] values) {
+        this.projection = projection;
+        this.values = values;
+    }
+
+    public ModelType getModelType() {
+        return projection.modelType;
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public String getName(int ndx) {
+        return projection.names[ndx];
+    }
+
+    public Object getValue(int ndx) {
+        return values[ndx];
+    }
+
+    /**
+     * Gets a value by field name.
+     *
+     * @param name
+     *            The field name.
+     * @return The value or null if the field is not in the projection.
+     */
+    public Object get(String name) {
+        for (int i = 0; i != values.length; i++) {
+            if (projection.names[i].equals(name)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+}
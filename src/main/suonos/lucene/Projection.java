@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.github.am0e.commons.msgs.Msgs;
+
+import suonos.lucene.ModelType.ModelField;
+import suonos.lucene.fields.IndexedField;
+import suonos.models.annotations.Threaded;
+import suonos.services.ServiceException;
+
+/**
+ * A subset of the fields of a model returned by a query instead of the
+ * objects. The values are read from the doc values or the stored fields of the
+ * documents, the obj$ field is not decoded. See {@link ProjectedResults}.
+ *
+ * A field is named as in the model class (eg "title") or as a tag (eg
+ * "artists"), and must be stored or have doc values.
+ *
+ * @author anthony
+ */
+@Threaded
+public final class Projection {
+    final ModelType modelType;
+    final String[] names;
+    final IndexedField[] fields;
+
+    /**
+     * Names of the lucene fields read from the stored fields.
+     */
+    final Set<String> storedFields;
+
+    private Projection(ModelType modelType, String[] names, IndexedField[] fields) {
+        this.modelType = modelType;
+        this.names = names;
+        this.fields = fields;
+        this.storedFields = new HashSet<>();
+
+        for (IndexedField it : fields) {
+            if (!it.isDocValues()) {
+                storedFields.add(it.getName());
+            }
+        }
+    }
+
+    /**
+     * Creates a projection.
+     *
+     * @param models
+     *            The models.
+     * @param modelType
+     *            The model queried.
+     * @param names
+     *            The field names.
+     * @return The projection.
+     */
+    public static Projection forFields(IndexModels models, ModelType modelType, String[] names) {
+        IndexedField[] fields = new IndexedField[names.length];
+
+        for (int i = 0; i != names.length; i++) {
+            names[i] = names[i].trim();
+            fields[i] = getIndexedField(models, modelType, names[i]);
+
+            if (fields[i] == null || (!fields[i].isDocValues() && !fields[i].stored())) {
+                throw new ServiceException(Msgs.format("Field {} of {} cannot be projected", names[i],
+                        modelType.getModelName()));
+            }
+        }
+
+        return new Projection(modelType, names, fields);
+    }
+
+    /**
+     * Creates a projection from a view declared in models.xml.
+     *
+     * @param models
+     *            The models.
+     * @param modelType
+     *            The model queried.
+     * @param view
+     *            The view name. Eg "list".
+     * @return The projection.
+     */
+    public static Projection forView(IndexModels models, ModelType modelType, String view) {
+        String[] names = modelType.getView(view);
+
+        if (names == null) {
+            throw new ServiceException(Msgs.format("Unknown view {} for {}", view, modelType.getModelName()));
+        }
+
+        return forFields(models, modelType, names.clone());
+    }
+
+    private static IndexedField getIndexedField(IndexModels models, ModelType modelType, String name) {
+        // A field of the model class.
+        //
+        ModelField mf = modelType.getModelField(name);
+
+        if (mf != null) {
+            return mf.indexedField;
+        }
+
+        // A dynamic field, eg the "artists" tag is indexed as "album_artists".
+        //
+        IndexedField fld = models.getIndexedField(modelType.getAbbrevName().concat("_").concat(name));
+
+        if (fld == null) {
+            fld = models.getIndexedField(name);
+        }
+
+        return fld;
+    }
+
+    public ModelType getModelType() {
+        return modelType;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int ndx) {
+        return names[ndx];
+    }
+}
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.search.Query;
+
+import com.github.am0e.commons.msgs.Msgs;
+
+import suonos.models.annotations.Threaded;
+
+/**
+ * Cache of parsed queries, indexed by the query string and the default field.
+ * Clients send the same queries over and over (browse pages, tag filters), so
+ * the parser is only run on the first request.
+ *
+ * Like {@link ObjectCache} the cache is split into shards, each an LRU map
+ * guarded by its own lock.
+ *
+ * Lucene queries are mutable (setBoost), so the cache keeps its own copy of
+ * each query and {@link #get} returns a new copy. The copies are shallow: the
+ * clauses of a cached query are still shared and must not be modified.
+ *
+ * @author anthony
+ */
+@Threaded
+public final class QueryCache {
+
+    private static final int SHARDS = 16;
+
+    private final class Shard extends LinkedHashMap<String, Query> {
+        private static final long serialVersionUID = 1L;
+
+        Shard() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+            if (size() > maxEntriesPerShard) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private volatile int maxEntriesPerShard;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public QueryCache(int maxEntries) {
+        for (int i = 0; i != SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+        setMaxEntries(maxEntries);
+    }
+
+    /**
+     * Sets the maximum number of queries held by the cache. 0 disables the
+     * cache.
+     *
+     * @param maxEntries
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntriesPerShard = (maxEntries + SHARDS - 1) / SHARDS;
+
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.clear();
+            }
+        }
+    }
+
+    /**
+     * Gets a parsed query.
+     *
+     * @param query
+     *            The query string.
+     * @param defaultField
+     *            The field of the terms without a field.
+     * @return A copy of the query or null.
+     */
+    public Query get(String query, String defaultField) {
+        if (maxEntriesPerShard == 0) {
+            return null;
+        }
+
+        String key = key(query, defaultField);
+        Shard shard = shard(key);
+        Query q;
+
+        synchronized (shard) {
+            q = shard.get(key);
+        }
+
+        if (q == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return q.clone();
+    }
+
+    /**
+     * Adds a parsed query. The cache keeps a copy, so the caller is free to
+     * modify the query afterwards.
+     */
+    public void put(String query, String defaultField, Query q) {
+        if (maxEntriesPerShard == 0) {
+            return;
+        }
+
+        String key = key(query, defaultField);
+        Shard shard = shard(key);
+
+        synchronized (shard) {
+            shard.put(key, q.clone());
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                size += shard.size();
+            }
+        }
+        return size;
+    }
+
+    private static String key(String query, String defaultField) {
+        return defaultField.concat("\0").concat(query);
+    }
+
+    private Shard shard(String key) {
+        return shards[key.hashCode() & (SHARDS - 1)];
+    }
+
+    @Override
+    public String toString() {
+        return Msgs.format("size={} hits={} misses={} evictions={}", size(), hits(), misses(), evictions());
+    }
+}
@@ -17,22 +17,34 @@
 package suonos.lucene;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.sorter.SortingMergePolicy;
 import org.apache.lucene.queryparser.flexible.core.QueryNodeException;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.SortField.Type;
 
 import com.github.am0e.commons.msgs.Msgs;
+import com.github.am0e.commons.utils.StringUtil;
+import com.github.am0e.commons.utils.Validate;
 
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.util.BytesRef;
 
 import suonos.lucene.fields.IndexedField;
 import suonos.models.StoreObject;
@@ -50,8 +62,12 @@ public class QueryHelper {
     private Query query;
     private Sort sort;
     private ScoreDoc afterDoc;
+    private String afterToken;
+    private long afterGeneration;
     private Class<?> type;
     private int max = 50;
+    private String[] fields;
+    private String view;
 
     public QueryHelper(Statement stmt) {
         this.stmt = stmt;
@@ -81,18 +97,38 @@ public class QueryHelper {
         return createQuery(Msgs.format(query, args));
     }
 
+    /**
+     * Parses a query. The parsed queries are cached, see {@link QueryCache}.
+     * Code building queries from values should use {@link #boolQuery()}.
+     */
     public Query createQuery(String query) {
         query = query.trim();
 
         if (query.isEmpty())
             return null;
 
-        try {
-            return stmt.standardQueryParser().parse(query, "title");
+        QueryCache cache = stmt.luceneIndex.getQueryCache();
+        Query q = cache.get(query, "title");
+
+        if (q == null) {
+            try {
+                q = stmt.standardQueryParser().parse(query, "title");
+
+            } catch (QueryNodeException e) {
+                throw new ServiceException(e.getLocalizedMessage());
+            }
 
-        } catch (QueryNodeException e) {
-            throw new ServiceException(e.getLocalizedMessage());
+            cache.put(query, "title", q);
         }
+
+        return q;
+    }
+
+    /**
+     * Builds a boolean query of terms without parsing.
+     */
+    public BoolQueryBuilder boolQuery() {
+        return new BoolQueryBuilder(stmt.context.type$_field().name());
     }
 
     public Query createTypeQuery(Class<?> type) {
@@ -172,39 +208,313 @@ public class QueryHelper {
             Type sortFieldType = field.getSortFieldType();
 
             if (sortFieldType != null && sortFieldType != SortField.Type.SCORE) {
-                return new Sort(new SortField(field.getName(), sortFieldType, reverse));
+                return new Sort(new SortField(field.getName(), sortFieldType, reverse),
+                        LuceneIndex.TIE_BREAK_SORT_FIELD);
             }
 
-            return new Sort(new SortField(sortExpr, SortField.Type.STRING, reverse));
+            return new Sort(new SortField(sortExpr, SortField.Type.STRING, reverse), LuceneIndex.TIE_BREAK_SORT_FIELD);
         }
         return null;
     }
 
+    /**
+     * Sets the token of the page to return, see
+     * {@link QueryResults#lastScoreToken()}.
+     */
     public QueryHelper setNextToken(String nextToken) {
         if (nextToken != null) {
-            afterDoc = IndexUtils.parseLastScoreToken(nextToken);
+            // Parsed once the sort is known, see searchIndex().
+            //
+            afterGeneration = IndexUtils.parseTokenGeneration(nextToken);
+            afterToken = nextToken;
         }
         return this;
     }
 
+    /**
+     * Sets the fields returned by {@link #project()}.
+     * 
+     * @param fields
+     *            Comma separated field names. Eg "id,title,artists".
+     */
+    public QueryHelper setFields(String fields) {
+        if (fields != null) {
+            this.fields = StringUtil.split(fields, ",");
+        }
+        return this;
+    }
+
+    /**
+     * Sets the view returned by {@link #project()}. Views are declared in
+     * models.xml.
+     * 
+     * @param view
+     *            The view name. Eg "list".
+     */
+    public QueryHelper setView(String view) {
+        if (view != null) {
+            this.view = view;
+        }
+        return this;
+    }
+
+    /**
+     * Returns true if fields or a view have been set.
+     */
+    public boolean isProjection() {
+        return fields != null || view != null;
+    }
+
+    /**
+     * Runs the query and returns the fields or view set, read from the doc
+     * values and stored fields. The objects are not loaded. The type must be
+     * set.
+     * 
+     * @return The results.
+     * @throws IOException
+     */
+    public ProjectedResults project() throws IOException {
+        Validate.notNull(type, "type");
+
+        IndexModels models = stmt.luceneIndex.models();
+        ModelType modelType = models.getModelType(type);
+        Projection projection;
+
+        if (fields != null) {
+            projection = Projection.forFields(models, modelType, fields);
+        } else {
+            projection = Projection.forView(models, modelType, view);
+        }
+
+        return new ProjectedResults(stmt, projection, search());
+    }
+
     public <T extends StoreObject> QueryResults<T> query() throws IOException {
+        TopDocs docs = search();
+        return new QueryResults<T>(stmt, query, sort, docs);
+    }
+
+    private TopDocs search() throws IOException {
         Query query = buildQuery();
+
+        // Look for the page in the cache.
+        //
+        ResultPageCache cache = stmt.luceneIndex.getPageCache();
+        long generation = stmt.readerGeneration();
+        String key = pageKey(query);
+        TopDocs docs = cache.get(generation, key);
+
+        if (docs == null) {
+            docs = searchIndex(query);
+            cache.put(generation, key, docs);
+        }
+
+        return docs;
+    }
+
+    /**
+     * The key of the page in the {@link ResultPageCache}. The query and sort
+     * are in their parsed form, so equivalent query strings share a page.
+     */
+    private String pageKey(Query query) {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(type == null ? "" : type.getSimpleName()).append('|');
+        sb.append(query).append('|');
+        sb.append(sort == null ? "" : sort.toString()).append('|');
+
+        if (afterToken != null) {
+            sb.append(afterToken);
+        }
+
+        return sb.append('|').append(max).toString();
+    }
+
+    private TopDocs searchIndex(Query query) throws IOException {
         TopDocs docs;
 
-        if (afterDoc != null) {
+        if (afterToken != null) {
+            afterDoc = IndexUtils.parseLastScoreToken(afterToken, sort == null ? 0 : sort.getSort().length);
+
             if (sort == null)
-                docs = stmt.indexSearcher().searchAfter(afterDoc, query, max);
+                docs = stmt.indexSearcher().searchAfter(afterDoc(), query, max);
             else
-                docs = stmt.indexSearcher().searchAfter(afterDoc, query, max, sort);
+                docs = stmt.indexSearcher().searchAfter(afterFieldDoc(), query, max, sort);
 
         } else {
-            if (sort == null)
+            Sort indexSort = getIndexOrderSort();
+
+            if (indexSort != null)
+                docs = searchIndexOrder(query, indexSort);
+            else if (sort == null)
                 docs = stmt.indexSearcher().search(query, max);
             else
                 docs = stmt.indexSearcher().search(query, max, sort);
         }
 
-        return new QueryResults<T>(stmt, query, docs);
+        return docs;
+    }
+
+    /**
+     * The last hit of the previous page of a query sorted by relevance. The
+     * doc breaks ties between equal scores, it is only exact if the index has
+     * not changed since the token was built.
+     */
+    private ScoreDoc afterDoc() {
+        if (afterGeneration != -1 && afterGeneration != stmt.readerGeneration()) {
+            Statement.log.debug("Page token of reader {}, hits with equal scores may be repeated", afterGeneration);
+        }
+
+        return new ScoreDoc(afterDocId(), afterDoc.score);
+    }
+
+    /**
+     * The doc of the token. Documents are renumbered when the index changes
+     * and the index may have shrunk since, searchAfter() rejects a doc past
+     * the end. The doc of a token of another reader is only a tie break, it
+     * is clamped to the last doc.
+     */
+    private int afterDocId() {
+        return Math.min(afterDoc.doc, stmt.indexReader().maxDoc() - 1);
+    }
+
+    /**
+     * The last hit of the previous page of a sorted query. The sort values
+     * end with the id of the document, so the page starts at the same place
+     * whatever the changes to the index since the token was built.
+     */
+    private FieldDoc afterFieldDoc() {
+        SortField[] sortFields = sort.getSort();
+
+        if (afterDoc instanceof FieldDoc == false || ((FieldDoc) afterDoc).fields.length != sortFields.length) {
+            throw new ServiceException("Token does not match the sort");
+        }
+
+        Object[] values = ((FieldDoc) afterDoc).fields;
+
+        for (int i = 0; i != values.length; i++) {
+            if (values[i] != null && !isSortValue(sortFields[i].getType(), values[i])) {
+                throw new ServiceException("Token does not match the sort");
+            }
+        }
+
+        return new FieldDoc(afterDocId(), afterDoc.score, values);
+    }
+
+    private static boolean isSortValue(SortField.Type type, Object val) {
+        switch (type) {
+        case STRING:
+        case STRING_VAL:
+            return val instanceof BytesRef;
+        case INT:
+        case DOC:
+            return val instanceof Integer;
+        case LONG:
+            return val instanceof Long;
+        case FLOAT:
+        case SCORE:
+            return val instanceof Float;
+        case DOUBLE:
+            return val instanceof Double;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Returns the index sort if the query is sorted in the same order. The
+     * query is for a single type, so sorting on the browse key of the type
+     * then id is the same as sorting on the index sort: type, browse key, id.
+     */
+    private Sort getIndexOrderSort() {
+        if (type == null || sort == null || sort.getSort().length != 2) {
+            return null;
+        }
+
+        SortField sf = sort.getSort()[0];
+        String sortKey = stmt.luceneIndex.getModelType(type).getSortKeyFieldName();
+
+        if (sf.getReverse() || sf.getType() != SortField.Type.STRING || !sf.getField().equals(sortKey)
+                || !sort.getSort()[1].equals(LuceneIndex.TIE_BREAK_SORT_FIELD)) {
+            return null;
+        }
+
+        return stmt.luceneIndex.getIndexSort();
+    }
+
+    /**
+     * Runs a query sorted in index order. Segments sorted by the merge policy
+     * stop collecting once the page is full, the remaining hits are counted in
+     * the same pass.
+     */
+    private TopDocs searchIndexOrder(Query query, Sort indexSort) throws IOException {
+        IndexSearcher searcher = stmt.indexSearcher();
+        IndexOrderCollector collector = new IndexOrderCollector(
+                TopFieldCollector.create(indexSort, max, true, false, false), indexSort, max);
+
+        searcher.search(query, collector);
+
+        TopDocs docs = collector.topDocs.topDocs();
+        docs.totalHits = collector.totalHits;
+
+        // The sort values of the hits are those of the index sort. Drop the
+        // type so they match the query sort and can be used in page tokens.
+        //
+        for (ScoreDoc it : docs.scoreDocs) {
+            FieldDoc fd = (FieldDoc) it;
+            fd.fields = Arrays.copyOfRange(fd.fields, 1, fd.fields.length);
+        }
+
+        return docs;
+    }
+
+    /**
+     * Collects the first hits in index order and counts all the hits in a
+     * single pass. The segments are sorted by the index sort, so only the
+     * first max hits of each sorted segment are passed to the top docs
+     * collector, the rest are only counted. This is the early termination of
+     * EarlyTerminatingSortingCollector without stopping the count.
+     */
+    private static final class IndexOrderCollector implements Collector {
+        final TopFieldCollector topDocs;
+        final Sort indexSort;
+        final int max;
+        int totalHits;
+
+        IndexOrderCollector(TopFieldCollector topDocs, Sort indexSort, int max) {
+            this.topDocs = topDocs;
+            this.indexSort = indexSort;
+            this.max = max;
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+            LeafCollector top = topDocs.getLeafCollector(context);
+            int limit = SortingMergePolicy.isSorted(context.reader(), indexSort) ? max : Integer.MAX_VALUE;
+
+            return new LeafCollector() {
+                int collected;
+
+                @Override
+                public void setScorer(Scorer scorer) throws IOException {
+                    top.setScorer(scorer);
+                }
+
+                @Override
+                public void collect(int doc) throws IOException {
+                    totalHits++;
+
+                    if (collected < limit) {
+                        collected++;
+                        top.collect(doc);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public boolean needsScores() {
+            return false;
+        }
     }
 
     public Query buildQuery() {
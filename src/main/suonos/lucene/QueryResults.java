@@ -17,13 +17,17 @@
 package suonos.lucene;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TopDocs;
 
 import com.github.am0e.commons.AntLib;
@@ -35,7 +39,9 @@ import suonos.services.ServiceException;
 public class QueryResults<T extends StoreObject> implements Iterable<T> {
     private Statement stmt;
     private Query query;
+    private Sort sort;
     private TopDocs docs;
+    private long generation;
     private Map<String, T> byId;
 
     private class QueryResultsIterator implements Iterator<T> {
@@ -62,13 +68,117 @@ public class QueryResults<T extends StoreObject> implements Iterable<T> {
 
     }
 
-    public final static int SEARCH_CNT = 4;
+    /**
+     * Iterates all the hits, see {@link QueryResults#cursor()}. The hits after
+     * the first page are fetched in chunks, growing from CHUNK_MIN to
+     * CHUNK_MAX. The objects of a chunk are decoded in document id order.
+     */
+    private class Cursor implements Iterator<T> {
+        private ScoreDoc[] hits = docs.scoreDocs;
+        private Object[] objects;
+        private int pos;
+        private int remaining = docs.totalHits;
+        private int chunk = CHUNK_MIN;
+
+        @Override
+        public boolean hasNext() {
+            if (pos < hits.length) {
+                return true;
+            }
+
+            if (remaining <= hits.length || hits.length == 0 || query == null) {
+                return false;
+            }
+
+            try {
+                nextChunk();
+
+            } catch (IOException e) {
+                throw new ServiceException(e);
+            }
+
+            return pos < hits.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            try {
+                if (objects == null) {
+                    decode();
+                }
+
+                return (T) objects[pos++];
+
+            } catch (IOException e) {
+                throw new ServiceException(e);
+            }
+        }
+
+        private void nextChunk() throws IOException {
+            ScoreDoc after = hits[hits.length - 1];
+            IndexSearcher searcher = stmt.indexSearcher();
+
+            remaining -= hits.length;
+
+            TopDocs next = sort == null ? searcher.searchAfter(after, query, chunk)
+                    : searcher.searchAfter(after, query, chunk, sort);
+
+            hits = next.scoreDocs;
+            objects = null;
+            pos = 0;
+            chunk = Math.min(chunk * 2, CHUNK_MAX);
+        }
+
+        /**
+         * Decodes the objects of the current hits. The documents are read in
+         * id order, which reads the stored fields sequentially.
+         */
+        private void decode() throws IOException {
+            Integer[] order = new Integer[hits.length];
+            for (int i = 0; i != order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Integer.compare(hits[a].doc, hits[b].doc));
+
+            objects = new Object[hits.length];
+
+            for (int i : order) {
+                objects[i] = stmt.getDoc(hits[i].doc);
+            }
+        }
+    }
+
     public final static int SEARCH_MAX = 500;
 
+    private final static int CHUNK_MIN = 256;
+    private final static int CHUNK_MAX = 4096;
+
     public QueryResults(Statement stmt, Query query, TopDocs docs) {
+        this(stmt, query, null, docs);
+    }
+
+    /**
+     * @param stmt
+     *            The statement.
+     * @param query
+     *            The query, used to fetch the hits after the page. Null if the
+     *            page holds all the hits.
+     * @param sort
+     *            The sort of the query, null if sorted by relevance.
+     * @param docs
+     *            The hits of the page.
+     */
+    public QueryResults(Statement stmt, Query query, Sort sort, TopDocs docs) {
         this.docs = docs;
         this.stmt = stmt;
         this.query = query;
+        this.sort = sort;
+        this.generation = stmt.readerGeneration();
     }
 
     public int totalHits() {
@@ -94,7 +204,7 @@ public class QueryResults<T extends StoreObject> implements Iterable<T> {
     public String lastScoreToken() throws IOException {
         ScoreDoc lastScore = lastScore();
         if (lastScore != null) {
-            return IndexUtils.buildLastScoreToken(lastScore);
+            return IndexUtils.buildLastScoreToken(lastScore, generation);
         }
         return null;
     }
@@ -107,37 +217,33 @@ public class QueryResults<T extends StoreObject> implements Iterable<T> {
         throw Validate.illegalArgument("pos");
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Gets all the hits, not just the page. Prefer {@link #cursor()} for
+     * large results.
+     */
     public List<T> all() throws IOException {
-        return (List<T>) getObjects();
-    }
-
-    private List<?> getObjects() throws IOException {
-
         if (docs.scoreDocs.length <= 0) {
             return Collections.emptyList();
         }
 
-        List<Object> list = AntLib.newList(docs.totalHits);
-        int totalHits = docs.totalHits;
+        List<T> list = AntLib.newList(docs.scoreDocs.length);
 
-        while (totalHits != 0) {
-            for (ScoreDoc it : docs.scoreDocs) {
-                list.add(stmt.getDoc(it.doc));
-                totalHits--;
-            }
-
-            if (totalHits > 0 && docs.scoreDocs.length == SEARCH_CNT) {
-                docs = stmt.indexSearcher().searchAfter(docs.scoreDocs[SEARCH_CNT - 1], query, SEARCH_CNT);
-
-            } else {
-                break;
-            }
+        for (Iterator<T> it = cursor(); it.hasNext();) {
+            list.add(it.next());
         }
 
         return list;
     }
 
+    /**
+     * Iterates all the hits, not just the page. The hits after the page are
+     * fetched in growing chunks as the iterator advances, and the objects are
+     * decoded a chunk at a time.
+     */
+    public Iterator<T> cursor() {
+        return new Cursor();
+    }
+
     @Override
     public Iterator<T> iterator() {
         return new QueryResultsIterator();
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import com.github.am0e.commons.AntLib;
+
+import suonos.models.StoreObject;
+import suonos.models.annotations.Threaded;
+
+/**
+ * Loads the objects related to a set of objects by a key field, eg the tracks
+ * of the albums of a result page, in a single pass over the index rather than
+ * a query per object. The related objects hold the id of the object they
+ * belong to in the key field, eg MusicTrack.albumId.
+ *
+ * @author anthony
+ *
+ * @param <P>
+ *            The type of the objects.
+ * @param <C>
+ *            The type of the related objects.
+ */
+@Threaded
+public final class RelationLoader<P extends StoreObject, C extends StoreObject> {
+    private final Class<C> relatedType;
+    private final String keyField;
+    private final BiConsumer<P, List<C>> setter;
+
+    /**
+     * @param relatedType
+     *            The type of the related objects.
+     * @param keyField
+     *            The indexed name of the key field, eg track_albumId.
+     * @param setter
+     *            Called with the related objects of each object.
+     */
+    public RelationLoader(Class<C> relatedType, String keyField, BiConsumer<P, List<C>> setter) {
+        this.relatedType = relatedType;
+        this.keyField = keyField;
+        this.setter = setter;
+    }
+
+    /**
+     * Loads the related objects of the objects.
+     * 
+     * @param stmt
+     *            The statement.
+     * @param objects
+     *            The objects. Each is passed to the setter, with an empty list
+     *            if it has no related objects.
+     * @throws IOException
+     */
+    public void load(Statement stmt, Collection<? extends P> objects) throws IOException {
+        if (objects.isEmpty()) {
+            return;
+        }
+
+        List<String> keys = AntLib.newList(objects.size());
+
+        for (P it : objects) {
+            keys.add(it.getId());
+        }
+
+        int[][] docs = IdLookup.lookupAll(stmt.indexReader(), keyField, keys);
+        int i = 0;
+
+        for (P it : objects) {
+            List<C> related = AntLib.newList(docs[i].length);
+
+            for (int doc : docs[i]) {
+                Object obj = stmt.getDoc(doc);
+
+                if (relatedType.isInstance(obj)) {
+                    related.add(relatedType.cast(obj));
+                }
+            }
+
+            setter.accept(it, related);
+            i++;
+        }
+    }
+}
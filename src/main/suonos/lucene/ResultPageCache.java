@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.search.TopDocs;
+
+import com.github.am0e.commons.msgs.Msgs;
+
+import suonos.models.annotations.Threaded;
+
+/**
+ * Cache of result pages: the hits of a query page, indexed by the normalized
+ * query (type, query, sort, next token and max). Clients request the same
+ * browse and search pages over and over; a cached page skips the search. The
+ * cache holds only the hits: the objects of the page are looked up in the
+ * {@link ObjectCache}, which returns copies of the objects it has decoded.
+ *
+ * Like the object cache, the pages hold document ids and are only valid for
+ * the reader they were obtained from. The cache is invalidated when
+ * {@link LuceneIndex} publishes a new reader.
+ *
+ * The cache is bounded by an estimate of the memory used by the pages. The
+ * least recently used pages are evicted first.
+ *
+ * @author anthony
+ */
+@Threaded
+public final class ResultPageCache {
+
+    private static final class Entry {
+        final TopDocs docs;
+        final int weight;
+
+        Entry(TopDocs docs, int weight) {
+            this.docs = docs;
+            this.weight = weight;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> pages = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile long maxWeight;
+    private volatile long generation = -1;
+    private long weight;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ResultPageCache(int maxKB) {
+        setMaxKB(maxKB);
+    }
+
+    /**
+     * Sets the memory budget of the cache. 0 disables the cache.
+     */
+    public void setMaxKB(int maxKB) {
+        this.maxWeight = maxKB * 1024L;
+        invalidate(generation);
+    }
+
+    /**
+     * Gets a page.
+     *
+     * @param generation
+     *            The version of the reader of the caller.
+     * @param key
+     *            The normalized query.
+     * @return The hits or null.
+     */
+    public TopDocs get(long generation, String key) {
+        if (maxWeight == 0 || generation != this.generation) {
+            return null;
+        }
+
+        Entry e;
+
+        synchronized (pages) {
+            e = pages.get(key);
+        }
+
+        if (e != null) {
+            hits.incrementAndGet();
+            return e.docs;
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Adds a page. Ignored if the generation is not the current one. The
+     * page is shared between threads and must not be modified.
+     */
+    public void put(long generation, String key, TopDocs docs) {
+        if (maxWeight == 0 || generation != this.generation) {
+            return;
+        }
+
+        // Estimate: the key characters plus a score doc per hit.
+        //
+        int w = 64 + key.length() * 2 + docs.scoreDocs.length * 32;
+
+        synchronized (pages) {
+            Entry prev = pages.put(key, new Entry(docs, w));
+
+            weight += w;
+            if (prev != null) {
+                weight -= prev.weight;
+            }
+
+            Iterator<Entry> it = pages.values().iterator();
+
+            while (weight > maxWeight && it.hasNext()) {
+                weight -= it.next().weight;
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops all the pages and sets the current generation. Called when a new
+     * reader is published.
+     *
+     * @param generation
+     *            The version of the new reader.
+     */
+    public void invalidate(long generation) {
+        synchronized (pages) {
+            this.generation = generation;
+            pages.clear();
+            weight = 0;
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    public int size() {
+        synchronized (pages) {
+            return pages.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Msgs.format("size={} hits={} misses={} evictions={}", size(), hits(), misses(), evictions());
+    }
+}
@@ -17,20 +17,45 @@
 package suonos.lucene;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import suonos.models.annotations.Threaded;
+
+/**
+ * Reference counted holder of a lucene resource. The reference count starts at
+ * 1, the reference held by {@link LuceneIndex} while the holder is published.
+ * Threads acquire the holder with {@link #tryIncRefCount()} and release it with
+ * {@link #decRefCount()}. When a new holder is published the previous one is
+ * retired with {@link #forceCloseDown()}, dropping the publish reference; the
+ * last release then closes the resource.
+ *
+ * The count is updated using compare and set, no lock is taken.
+ */
+@Threaded
 public abstract class SharedBase {
-    int refCount;
-    private boolean closeDown;
+    private final AtomicInteger refCount = new AtomicInteger(1);
 
     int getRefCount() {
-        return refCount;
+        return refCount.get();
     }
 
-    void incRefCount() {
-        this.refCount += 1;
+    /**
+     * Increases the reference count unless the resource has been released.
+     *
+     * @return False if the reference count has already reached 0. The caller
+     *         must get the currently published holder and try again.
+     */
+    boolean tryIncRefCount() {
+        while (true) {
+            int n = refCount.get();
+
+            if (n <= 0) {
+                return false;
+            }
 
-        if (this.refCount == 1) {
-            LuceneIndex.log.debug("IndexSearcher first use");
+            if (refCount.compareAndSet(n, n + 1)) {
+                return true;
+            }
         }
     }
 
@@ -38,35 +63,32 @@ public abstract class SharedBase {
 
         // Decrease the ref count.
         //
-        refCount -= 1;
+        int n = refCount.decrementAndGet();
 
         // Are there any more references to this object?
         //
-        if (refCount == 0) {
-            // Do we need to close down the lucene Index Reader?
+        if (n == 0) {
+            // Retired and no longer in use. Close down the resource.
             //
-            if (closeDown == true) {
-                releaseResources();
-                closeDown = false;
-            }
-            LuceneIndex.log.debug("IndexSeacher no longer in use");
+            releaseResources();
+            LuceneIndex.log.debug("Shared resource released");
+
+        } else if (n < 0) {
+            throw new IllegalStateException("Reference count below zero");
         }
 
-        return refCount;
+        return n;
     }
 
     /**
-     * Set the close down flag. This is set when angetIndexSearcher Index Writer
-     * commits it's changes. When the last reference to the reader is released,
-     * the Index Reader object will be closed.
+     * Retires the object. Drops the reference held while the object was
+     * published. When the last reference is released, the resource will be
+     * closed. Call once only, after a new holder has been published.
      *
-     * @param closeDown
      * @throws IOException
      */
     void forceCloseDown() throws IOException {
-        this.closeDown = true;
-        if (refCount == 0)
-            releaseResources();
+        decRefCount();
     }
 
     abstract void releaseResources() throws IOException;
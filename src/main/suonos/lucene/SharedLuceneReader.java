@@ -20,6 +20,7 @@ import java.io.IOException;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.IndexSearcher;
 import org.slf4j.Logger;
@@ -30,18 +31,31 @@ import org.slf4j.LoggerFactory;
  * 
  * There is a single instance of this class shared by different threads. The
  * lucene IndexReader class is thread safe.
+ * 
+ * The reader is a composite of the readers of the {@link IndexPartition}s. The
+ * partition readers that have not changed are shared with the previous
+ * composite reader.
  */
 final public class SharedLuceneReader extends SharedBase {
 
     private static final Logger log = LoggerFactory.getLogger(SharedLuceneReader.class);
 
     private IndexReader reader;
-    private IndexSearcher searcher;
-    private LuceneIndex store;
+    private final DirectoryReader[] partitionReaders;
+    private final long generation;
+    private final IndexSearcher searcher;
+    private final LuceneIndex store;
 
-    public SharedLuceneReader(LuceneIndex store, IndexReader reader) throws CorruptIndexException, IOException {
+    SharedLuceneReader(LuceneIndex store, IndexReader reader, DirectoryReader[] partitionReaders, long generation)
+            throws CorruptIndexException, IOException {
         this.reader = reader;
+        this.partitionReaders = partitionReaders;
+        this.generation = generation;
         this.store = store;
+
+        // Created up front, the holder is shared by threads without a lock.
+        //
+        this.searcher = store.newSearcher(reader);
     }
 
     public void close() {
@@ -50,15 +64,11 @@ final public class SharedLuceneReader extends SharedBase {
 
     void releaseResources() throws IOException {
 
-        if (refCount != 0)
+        if (getRefCount() != 0)
             throw new IllegalStateException();
 
         log.debug("Destroying IndexReader");
 
-        if (searcher != null) {
-            searcher = null;
-        }
-
         if (reader != null) {
             reader.close();
             reader = null;
@@ -69,10 +79,15 @@ final public class SharedLuceneReader extends SharedBase {
         return reader;
     }
 
+    /**
+     * The readers of the partitions, in the order of
+     * {@link LuceneIndex#partitions()}.
+     */
+    DirectoryReader[] partitionReaders() {
+        return partitionReaders;
+    }
+
     public IndexSearcher indexSearcher() {
-        if (searcher == null) {
-            this.searcher = new IndexSearcher(reader);
-        }
         return searcher;
     }
 
@@ -80,6 +95,14 @@ final public class SharedLuceneReader extends SharedBase {
         return indexSearcher().doc(doc);
     }
 
+    /**
+     * The generation of the reader. Changes every time the reader is reopened
+     * with changes.
+     */
+    public long generation() {
+        return generation;
+    }
+
     public int maxDoc() throws IOException {
         return reader.maxDoc();
     }
@@ -24,15 +24,15 @@ import org.apache.lucene.index.IndexWriter;
 /**
  * Managed lucene writer.
  * 
- * There is a single instance of this class shared by different threads. The
- * lucene IndexWriter class is thread safe.
+ * There is a single instance of this class per {@link IndexPartition} shared
+ * by different threads. The lucene IndexWriter class is thread safe.
  */
 public class SharedLuceneWriter extends SharedBase {
     private IndexWriter writer;
-    private LuceneIndex store;
+    private IndexPartition partition;
 
-    public SharedLuceneWriter(LuceneIndex store, IndexWriter writer) {
-        this.store = store;
+    SharedLuceneWriter(IndexPartition partition, IndexWriter writer) {
+        this.partition = partition;
         this.writer = writer;
     }
 
@@ -40,8 +40,12 @@ public class SharedLuceneWriter extends SharedBase {
         return writer;
     }
 
+    IndexPartition partition() {
+        return partition;
+    }
+
     public void close() {
-        store.releaseSharedWriter(this);
+        partition.releaseWriter(this);
     }
 
     @Override
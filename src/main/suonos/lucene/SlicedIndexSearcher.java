@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+
+import suonos.models.annotations.Threaded;
+
+/**
+ * IndexSearcher that searches groups of segments (slices) concurrently on an
+ * executor. The default IndexSearcher creates a task per segment; small
+ * segments are grouped here so that a task is worth scheduling.
+ *
+ * @author anthony
+ */
+@Threaded
+final class SlicedIndexSearcher extends IndexSearcher {
+
+    // The slice limits are static because IndexSearcher calls slices() from
+    // its constructor, before the fields of a subclass are set. Set by
+    // LuceneIndex when it starts.
+    //
+    static volatile int maxDocsPerSlice = 250000;
+    static volatile int maxSegmentsPerSlice = 5;
+
+    SlicedIndexSearcher(IndexReader reader, ExecutorService executor) {
+        super(reader, executor);
+    }
+
+    @Override
+    protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+        // Largest segments first.
+        //
+        List<LeafReaderContext> sorted = new ArrayList<>(leaves);
+        sorted.sort((a, b) -> Integer.compare(b.reader().maxDoc(), a.reader().maxDoc()));
+
+        List<LeafSlice> slices = new ArrayList<>();
+        List<LeafReaderContext> group = new ArrayList<>();
+        long docs = 0;
+
+        for (LeafReaderContext it : sorted) {
+            int maxDoc = it.reader().maxDoc();
+
+            // A large segment is a slice by itself.
+            //
+            if (maxDoc > maxDocsPerSlice) {
+                slices.add(new LeafSlice(it));
+                continue;
+            }
+
+            group.add(it);
+            docs += maxDoc;
+
+            if (docs > maxDocsPerSlice || group.size() >= maxSegmentsPerSlice) {
+                slices.add(new LeafSlice(group.toArray(new LeafReaderContext[group.size()])));
+                group.clear();
+                docs = 0;
+            }
+        }
+
+        if (!group.isEmpty()) {
+            slices.add(new LeafSlice(group.toArray(new LeafReaderContext[group.size()])));
+        }
+
+        return slices.toArray(new LeafSlice[slices.size()]);
+    }
+}
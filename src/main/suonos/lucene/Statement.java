@@ -17,21 +17,32 @@
 package suonos.lucene;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.lucene.document.Document;
-import org.apache.lucene.document.Field;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.flexible.standard.StandardQueryParser;
-import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.QueryBuilder;
 import org.iq80.snappy.Snappy;
@@ -39,6 +50,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.am0e.commons.AntLib;
+import com.github.am0e.commons.msgs.Msgs;
+import com.github.am0e.commons.utils.Validate;
 
 import suonos.app.utils.Uids;
 import suonos.lucene.fields.IndexedFieldCountsBuilder;
@@ -47,22 +60,60 @@ import suonos.models.StoreObject;
 import suonos.models.StoreRef;
 
 public class Statement implements AutoCloseable {
-    private SharedLuceneWriter _writer;
+    /**
+     * The writers opened by the statement, indexed by partition ordinal.
+     */
+    private SharedLuceneWriter[] _writers;
     private SharedLuceneReader _reader;
+
+    /**
+     * Set by commit(). The next reader must include the writes of the
+     * statement.
+     */
+    private boolean _committed;
     final StatementContext context;
     final LuceneIndex luceneIndex;
+
+    /**
+     * Set if the statement writes to the partitions of a rebuild.
+     */
+    private final IndexRebuild rebuild;
     private StringWriter sw;
     private JsonDeserializer deserializer;
     private JsonSerializer serializer;
+    private BinaryObjectCodec codec;
+    private StandardQueryParser queryParser;
+    private byte[] inflated;
+    private byte[] deflated;
+    private byte[] arena;
+    private int arenaPos;
+
+    /**
+     * Number of documents passed to the writer in a single call when saving
+     * new objects.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * Size of the buffer holding the obj$ values of a batch.
+     */
+    private static final int ARENA_SIZE = 256 * 1024;
+
+    private static final byte[] EXPORT_LINE_END = { '}', '\n' };
     public static final Logger log = LoggerFactory.getLogger(Statement.class);
 
     public Statement(LuceneIndex index, StatementContext context) {
+        this(index, context, null);
+    }
+
+    Statement(LuceneIndex index, StatementContext context, IndexRebuild rebuild) {
         this.luceneIndex = index;
         this.context = context;
+        this.rebuild = rebuild;
     }
 
     public <T extends StoreObject> QueryResults<T> queryObject(String id) throws IOException {
-        return queryHelper().setQuery("id", id).query();
+        return queryObjects(Collections.singletonList(id));
     }
 
     public <T extends StoreObject> QueryResults<T> queryRelated(List<? extends StoreRef> objs) throws IOException {
@@ -77,14 +128,87 @@ public class Statement implements AutoCloseable {
         return queryObjects(ids);
     }
 
-    public <T extends StoreObject> QueryResults<T> queryObjects(List<String> ids) throws IOException {
-        QueryHelper qh = queryHelper();
-        return qh.setQuery(qh.createQuery("id", ids, Occur.SHOULD)).query();
+    /**
+     * Queries objects by id. The ids are looked up directly in the terms of
+     * each segment, see {@link IdLookup}.
+     * 
+     * @return The objects in the order of the ids. Ids not found are skipped.
+     */
+    public <T extends StoreObject> QueryResults<T> queryObjects(Collection<String> ids) throws IOException {
+        return new QueryResults<>(this, null, IdLookup.lookup(indexReader(), "id", ids));
+    }
+
+    /**
+     * Gets objects by id.
+     * 
+     * @return The objects in the order of the ids. Ids not found are skipped.
+     */
+    public <T extends StoreObject> List<T> getObjects(Collection<String> ids) throws IOException {
+        return this.<T> queryObjects(ids).all();
     }
 
+    /**
+     * A document held by the {@link ObjectCache}: the decoded object, or the
+     * uncompressed obj$ field if the object cannot be copied, see
+     * {@link ObjectSchema#copy(Object)}. Never modified, so it can be shared
+     * between threads.
+     */
+    private static final class CachedDoc {
+        final ModelType type;
+        final Object obj;
+        final byte[] data;
+
+        CachedDoc(ModelType type, Object obj, byte[] data) {
+            this.type = type;
+            this.obj = obj;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Gets the object of a document. A new object is returned on each call, so
+     * the caller can modify it and set relations on it. The decoded object is
+     * cached per reader generation, see {@link ObjectCache}, and copied field
+     * by field for each caller rather than decoded again.
+     */
     Object getDoc(int docId) throws CorruptIndexException, IOException {
-        // Unserialize the json string.
+        ObjectCache cache = luceneIndex.getCache();
+
+        if (!cache.isEnabled()) {
+            return readDoc(docId);
+        }
+
+        // Look in the cache first. The document may have been read by another
+        // request using the same reader.
         //
+        long generation = openSharedReader().generation();
+        CachedDoc cached = (CachedDoc) cache.get(generation, docId);
+
+        if (cached == null) {
+            Document doc = openSharedReader().doc(docId);
+            ModelType type = context.getModelType(doc.get(context.type$_field().name()));
+            ObjectSchema schema = type.getSchema();
+            int len = uncompress(doc);
+
+            if (schema != null && schema.isEncodable()) {
+                cached = new CachedDoc(type, decodeObject(type, inflated, len), null);
+            } else {
+                cached = new CachedDoc(type, null, Arrays.copyOf(inflated, len));
+            }
+
+            cache.put(generation, docId, cached);
+        }
+
+        if (cached.obj == null) {
+            return decodeObject(cached.type, cached.data, cached.data.length);
+        }
+
+        StoreObject obj = (StoreObject) cached.type.getSchema().copy(cached.obj);
+        obj.onQueried();
+        return obj;
+    }
+
+    private Object readDoc(int docId) throws CorruptIndexException, IOException {
         Document doc = openSharedReader().doc(docId);
 
         String modelName = doc.get(context.type$_field().name());
@@ -93,23 +217,196 @@ public class Statement implements AutoCloseable {
         //
         ModelType type = context.getModelType(modelName);
 
-        return unserializeJson(type.getModelClass(), getDocumentJson(docId));
+        // Uncompress the obj$ field.
+        //
+        int len = uncompress(doc);
+
+        return decodeObject(type, inflated, len);
+    }
+
+    /**
+     * Decodes an uncompressed obj$ field, stored in binary or json format.
+     */
+    private Object decodeObject(ModelType type, byte[] data, int len) throws IOException {
+        if (BinaryObjectCodec.isBinary(data, 0, len)) {
+            StoreObject obj = decodeBinary(type, data, len);
+            obj.onQueried();
+            return obj;
+        }
+
+        // Unserialize the json string.
+        //
+        return unserializeJson(type.getModelClass(), new String(data, 0, len, StandardCharsets.UTF_8));
     }
 
     public String getDocumentJson(int docId) throws CorruptIndexException, IOException {
         Document doc = openSharedReader().doc(docId);
 
+        int len = uncompress(doc);
+
+        if (BinaryObjectCodec.isBinary(inflated, 0, len)) {
+            // Stored in binary format. Decode and convert to json.
+            //
+            ModelType type = context.getModelType(doc.get(context.type$_field().name()));
+            return serializeToJson(decodeBinary(type, inflated, len));
+        }
+
+        // Return as string.
+        //
+        return new String(inflated, 0, len, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the objects of a type and/or matching a query as newline
+     * delimited json, one object per line: {"type":"MusicTrack","obj":{..}}.
+     * The documents are visited segment by segment in document id order, and
+     * only the type$ and obj$ fields are read. Memory use does not depend on
+     * the number of objects.
+     * 
+     * @param type
+     *            The model class, or null for all types.
+     * @param query
+     *            The query, or null for all the objects of the type.
+     * @param raw
+     *            True to write the stored json verbatim. Objects stored in
+     *            binary format are always decoded. Otherwise the objects are
+     *            decoded and serialized again.
+     * @param out
+     *            The output.
+     * @return The number of objects written.
+     * @throws IOException
+     */
+    public long exportObjects(Class<?> type, Query query, boolean raw, OutputStream out) throws IOException {
+        Query q = queryHelper().setType(type).setQuery(query).buildQuery();
+
+        if (q == null) {
+            q = new MatchAllDocsQuery();
+        }
+
+        IndexSearcher searcher = indexSearcher();
+        Weight weight = searcher.createNormalizedWeight(q, false);
+        String typeField = context.type$_field().name();
+        Set<String> fields = new HashSet<>();
+        fields.add(typeField);
+        fields.add(context.obj$_field().name());
+
+        long count = 0;
+
+        for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+            Scorer scorer = weight.scorer(leaf, leaf.reader().getLiveDocs());
+
+            if (scorer == null) {
+                continue;
+            }
+
+            for (int doc = scorer.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = scorer.nextDoc()) {
+                DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(fields);
+                leaf.reader().document(doc, visitor);
+
+                Document stored = visitor.getDocument();
+                String modelName = stored.get(typeField);
+                int len = uncompress(stored);
+
+                out.write(("{\"type\":\"" + modelName + "\",\"obj\":").getBytes(StandardCharsets.UTF_8));
+
+                if (raw && !BinaryObjectCodec.isBinary(inflated, 0, len)) {
+                    out.write(inflated, 0, len);
+
+                } else {
+                    ModelType modelType = context.getModelType(modelName);
+                    StoreObject obj;
+
+                    if (BinaryObjectCodec.isBinary(inflated, 0, len)) {
+                        obj = decodeBinary(modelType, inflated, len);
+                    } else {
+                        obj = unserializeJson(modelType.getModelClass(),
+                                new String(inflated, 0, len, StandardCharsets.UTF_8));
+                    }
+
+                    out.write(serializeToJson(obj).getBytes(StandardCharsets.UTF_8));
+                }
+
+                out.write(EXPORT_LINE_END);
+                count++;
+            }
+        }
+
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Uncompresses the obj$ field of the document into the inflate buffer.
+     * 
+     * @return The length of the uncompressed data.
+     */
+    private int uncompress(Document doc) throws IOException {
         // Get the serialized field from the document.
         //
         BytesRef binVal = doc.getBinaryValue(context.obj$_field().name());
 
-        // Uncompress the data into a string using snappy.
+        // Uncompress the data using snappy. The buffer is reused.
         //
-        byte[] bytes = Snappy.uncompress(binVal.bytes, binVal.offset, binVal.length);
+        int len = Snappy.getUncompressedLength(binVal.bytes, binVal.offset);
 
-        // Return as string.
-        //
-        return new String(bytes, "UTF-8");
+        if (inflated == null || inflated.length < len) {
+            inflated = new byte[Math.max(len, 4096)];
+        }
+
+        return Snappy.uncompress(binVal.bytes, binVal.offset, binVal.length, inflated, 0);
+    }
+
+    /**
+     * Encodes the object for the obj$ field and compresses it using snappy.
+     */
+    private BytesRef encodeObject(StoreObject object, ModelType modelType) {
+        ObjectSchema schema = luceneIndex.isBinaryObjectCodec() ? modelType.getSchema() : null;
+
+        if (schema != null && schema.isEncodable()) {
+            BinaryObjectCodec codec = codec();
+            codec.encode(object, schema);
+
+            // The compressed buffer is reused. The field value is copied by
+            // the writer when the document is added.
+            //
+            int max = Snappy.maxCompressedLength(codec.length());
+            if (deflated == null || deflated.length < max) {
+                deflated = new byte[Math.max(max, 4096)];
+            }
+
+            int len = Snappy.compress(codec.buffer(), 0, codec.length(), deflated, 0);
+            return new BytesRef(deflated, 0, len);
+        }
+
+        byte[] json = serializeToJson(object).getBytes(StandardCharsets.UTF_8);
+        int max = Snappy.maxCompressedLength(json.length);
+        if (deflated == null || deflated.length < max) {
+            deflated = new byte[Math.max(max, 4096)];
+        }
+
+        int len = Snappy.compress(json, 0, json.length, deflated, 0);
+        return new BytesRef(deflated, 0, len);
+    }
+
+    /**
+     * Decodes an uncompressed obj$ field stored in binary format.
+     */
+    private StoreObject decodeBinary(ModelType type, byte[] data, int len) {
+        ObjectSchema schema = type.getSchema();
+
+        if (schema == null) {
+            throw Validate.notAllowed(
+                    Msgs.format("{} cannot be decoded, the class has no no argument constructor", type.getModelName()));
+        }
+
+        return (StoreObject) codec().decode(data, 0, len, schema);
+    }
+
+    private BinaryObjectCodec codec() {
+        if (codec == null) {
+            codec = new BinaryObjectCodec();
+        }
+        return codec;
     }
 
     private String serializeToJson(StoreObject obj) {
@@ -151,8 +448,106 @@ public class Statement implements AutoCloseable {
     }
 
     public void saveObjects(Collection<? extends StoreObject> objects) throws IOException {
-        for (StoreObject it : objects) {
-            saveObject(it);
+        saveObjects(objects, false);
+    }
+
+    /**
+     * Saves a collection of objects. The documents are built using the pooled
+     * fields of the statement context.
+     * 
+     * @param objects
+     *            The objects.
+     * @param newObjects
+     *            True if the objects are known not to be in the index. The
+     *            documents are then passed to the writer in batches using
+     *            addDocuments(), avoiding a delete by id for every document.
+     * @throws IOException
+     */
+    public void saveObjects(Collection<? extends StoreObject> objects, boolean newObjects) throws IOException {
+
+        if (objects.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        // The partitions are resolved once writes are allowed, see
+        // beginWrite().
+        //
+        beginWrite();
+
+        try {
+            IndexPartition[] partitions = partitions();
+            int[] pending = new int[partitions.length];
+            IndexPartition batchPartition = null;
+            List<Document> batch = AntLib.newList(Math.min(objects.size(), BATCH_SIZE));
+
+            try {
+                for (StoreObject it : objects) {
+                    IndexPartition partition = partition(it.getClass());
+                    IndexWriter writer = openSharedWriter(partition).indexWriter();
+
+                    if (newObjects) {
+                        // A batch holds the documents of a single partition.
+                        //
+                        if (partition != batchPartition && batchPartition != null) {
+                            writeBatch(openSharedWriter(batchPartition).indexWriter(), batch);
+                        }
+
+                        batchPartition = partition;
+                        batch.add(buildDocument(it, true));
+
+                        if (batch.size() == BATCH_SIZE) {
+                            writeBatch(writer, batch);
+                        }
+                    } else {
+                        // The document first, it allocates the id of a new
+                        // object.
+                        //
+                        Document doc = buildDocument(it, false);
+                        writer.updateDocument(new Term("id", it.getId()), doc);
+                        context.fieldPool().reset();
+                    }
+
+                    recordWrite(partition, it.getId());
+                    pending[partition.ordinal]++;
+                }
+
+                if (batchPartition != null) {
+                    writeBatch(openSharedWriter(batchPartition).indexWriter(), batch);
+                }
+
+            } finally {
+                context.fieldPool().reset();
+                arenaPos = 0;
+            }
+
+            for (int i = 0; i != partitions.length; i++) {
+                if (pending[i] != 0) {
+                    partitions[i].writesPending(pending[i]);
+                }
+            }
+
+        } finally {
+            endWrite();
+        }
+
+        long elapsed = Math.max(System.nanoTime() - start, 1);
+
+        log.debug("Saved {} objects in {} ms, {} docs/sec", objects.size(), elapsed / 1000000,
+                objects.size() * 1000000000L / elapsed);
+    }
+
+    private void writeBatch(IndexWriter writer, List<Document> batch) throws IOException {
+        if (!batch.isEmpty()) {
+            writer.addDocuments(batch);
+            batch.clear();
+
+            // The writer has consumed the documents. The fields and the obj$
+            // buffer can be reused.
+            //
+            context.fieldPool().reset();
+            arenaPos = 0;
         }
     }
 
@@ -162,11 +557,66 @@ public class Statement implements AutoCloseable {
     }
 
     public void saveObject(StoreObject object) throws IOException {
+        beginWrite();
 
-        openSharedWriter();
+        try {
+            IndexPartition partition = partition(object.getClass());
+            Document doc = buildDocument(object, false);
+            Term term = new Term("id", object.getId());
 
+            openSharedWriter(partition).indexWriter().updateDocument(term, doc);
+            recordWrite(partition, object.getId());
+            partition.writesPending(1);
+
+        } finally {
+            endWrite();
+            context.fieldPool().reset();
+        }
+    }
+
+    /**
+     * Begins a write. Writes to the live partitions wait while a rebuild is
+     * swapped in. The partitions are resolved after this call, so that the
+     * write goes to the new partition.
+     */
+    private void beginWrite() {
+        if (rebuild == null) {
+            luceneIndex.beginWrite();
+        }
+    }
+
+    private void endWrite() {
+        if (rebuild == null) {
+            luceneIndex.endWrite();
+        }
+    }
+
+    /**
+     * Records a write to a live partition for a rebuild in progress.
+     */
+    private void recordWrite(IndexPartition partition, String id) {
+        if (rebuild == null) {
+            luceneIndex.recordWrite(partition, id);
+        }
+    }
+
+    private void recordDelete(IndexPartition partition, Query query) {
+        if (rebuild == null) {
+            luceneIndex.recordDelete(partition, query);
+        }
+    }
+
+    /**
+     * Builds the lucene document for the object.
+     * 
+     * @param object
+     *            The object. An id is allocated if it does not have one.
+     * @param batched
+     *            True if the document is held in a batch. The obj$ value is
+     *            then copied out of the compression buffer.
+     */
+    private Document buildDocument(StoreObject object, boolean batched) throws IOException {
         Document doc = new Document();
-        Field fld;
 
         if (object.getId() == null) {
             object.setId(Uids.newUID());
@@ -175,55 +625,120 @@ public class Statement implements AutoCloseable {
 
         // Update date.
         //
-        fld = context.update$_field();
-        fld.setIntValue(MTime.fromCurrentTime());
-        doc.add(fld);
+        doc.add(context.update$_field(MTime.fromCurrentTime()));
 
         // Document type.
         //
-        fld = context.type$_field();
-        fld.setStringValue(object.getClass().getSimpleName());
-        doc.add(fld);
+        doc.add(context.type$_field(object.getClass().getSimpleName()));
+        doc.add(context.type$s_field(object.getClass().getSimpleName()));
+        doc.add(context.id$s_field(object.getId()));
+
+        ModelType modelType = context.getModelType(object.getClass());
 
-        // Document object serialized in json format and compressed using
-        // snappy.
+        // Document object serialized in json or binary format and compressed
+        // using snappy.
         //
-        fld = context.obj$_field();
-        fld.setBytesValue(Snappy.compress(serializeToJson(object).getBytes()));
-        doc.add(fld);
+        BytesRef obj = encodeObject(object, modelType);
 
-        ModelType modelType = context.getModelType(object.getClass());
+        if (batched) {
+            obj = copyToArena(obj);
+        }
+
+        doc.add(context.obj$_field(obj));
 
         modelType.saveToLuceneDoc(context, object, doc);
 
-        Term term = new Term("id", object.getId());
+        return doc;
+    }
+
+    /**
+     * Copies the bytes into the batch buffer. The buffer is reused once the
+     * batch has been written.
+     */
+    private BytesRef copyToArena(BytesRef b) {
+        if (arena == null || arenaPos + b.length > arena.length) {
+            // Allocate a new buffer. The previous one is still referenced by
+            // the documents in the batch.
+            //
+            arena = new byte[Math.max(b.length, ARENA_SIZE)];
+            arenaPos = 0;
+        }
 
-        indexWriter().updateDocument(term, doc);
+        System.arraycopy(b.bytes, b.offset, arena, arenaPos, b.length);
 
-        // commit();
-        // object = queryObject(object.getClass(), object.getUid()).getObject();
+        BytesRef res = new BytesRef(arena, arenaPos, b.length);
+        arenaPos += b.length;
+        return res;
     }
 
-    private SharedLuceneWriter openSharedWriter() {
-        if (_writer == null)
-            _writer = luceneIndex.openSharedWriter();
+    /**
+     * Gets the partition written to for a model class.
+     */
+    private IndexPartition partition(Class<?> type) {
+        IndexPartition partition = luceneIndex.partition(type);
+        return rebuild != null ? rebuild.partition(partition) : partition;
+    }
+
+    /**
+     * Gets the partitions written to, indexed by ordinal.
+     */
+    private IndexPartition[] partitions() {
+        IndexPartition[] partitions = luceneIndex.partitions();
+
+        if (rebuild != null) {
+            partitions = partitions.clone();
+
+            for (int i = 0; i != partitions.length; i++) {
+                partitions[i] = rebuild.partition(partitions[i]);
+            }
+        }
+
+        return partitions;
+    }
+
+    private SharedLuceneWriter openSharedWriter(IndexPartition partition) {
+        if (_writers == null)
+            _writers = new SharedLuceneWriter[luceneIndex.partitions().length];
+
+        // Release the writer of a partition replaced by a rebuild.
+        //
+        if (_writers[partition.ordinal] != null && _writers[partition.ordinal].partition() != partition) {
+            _writers[partition.ordinal].close();
+            _writers[partition.ordinal] = null;
+        }
+
+        if (_writers[partition.ordinal] == null)
+            _writers[partition.ordinal] = partition.openWriter();
 
-        return _writer;
+        return _writers[partition.ordinal];
     }
 
     private SharedLuceneReader openSharedReader() {
-        if (_reader == null)
-            _reader = luceneIndex.openSharedReader();
+        if (_reader == null) {
+            _reader = luceneIndex.openSharedReader(_committed);
+            _committed = false;
+        }
 
         return _reader;
     }
 
+    /**
+     * Gets the generation of the reader of the statement.
+     */
+    long readerGeneration() {
+        return openSharedReader().generation();
+    }
+
     public IndexSearcher indexSearcher() {
         return openSharedReader().indexSearcher();
     }
 
-    public IndexWriter indexWriter() {
-        return openSharedWriter().indexWriter();
+    /**
+     * Gets the writer of the partition holding the documents of a model
+     * class.
+     */
+    public IndexWriter indexWriter(Class<?> type) {
+        return openSharedWriter(partition(type)).indexWriter();
     }
 
     public IndexReader indexReader() {
@@ -236,9 +751,13 @@ public class Statement implements AutoCloseable {
 
     @Override
     public void close() {
-        if (_writer != null) {
-            luceneIndex.releaseSharedWriter(_writer);
-            _writer = null;
+        if (_writers != null) {
+            for (SharedLuceneWriter it : _writers) {
+                if (it != null) {
+                    it.close();
+                }
+            }
+            _writers = null;
         }
 
         if (_reader != null) {
@@ -247,34 +766,82 @@ public class Statement implements AutoCloseable {
         }
     }
 
-    public void mergeAndCommit() throws IOException {
-        indexWriter().forceMergeDeletes(true);
-        indexWriter().forceMerge(2);
-        commit();
-    }
-
     public void deleteObject(StoreObject obj) throws IOException {
         Query q = queryHelper().createQuery("id", obj.getId());
-        deleteObjects(q);
+        deleteObjects(obj.getClass(), q);
+    }
+
+    /**
+     * Deletes the documents of a model class matching the query.
+     */
+    public void deleteObjects(Class<?> type, Query query) throws IOException {
+        beginWrite();
+
+        try {
+            IndexPartition partition = partition(type);
+            openSharedWriter(partition).indexWriter().deleteDocuments(query);
+            recordDelete(partition, query);
+            partition.writesPending(1);
+
+        } finally {
+            endWrite();
+        }
     }
 
+    /**
+     * Deletes the documents matching the query from all the partitions.
+     */
     public void deleteObjects(Query query) throws IOException {
-        indexWriter().deleteDocuments(query);
+        beginWrite();
+
+        try {
+            for (IndexPartition it : partitions()) {
+                openSharedWriter(it).indexWriter().deleteDocuments(query);
+                recordDelete(it, query);
+                it.writesPending(1);
+            }
+
+        } finally {
+            endWrite();
+        }
     }
 
-    public void commit() throws IOException {
-        // Commit writes.
+    /**
+     * Requests a commit of the writes made by the statement. The writes are
+     * visible to searches straight away, the commits are made by the
+     * background committers of the partitions written to, grouped with the
+     * writes of other statements.
+     * 
+     * @return Future completed when the writes are durable. Callers that need
+     *         durability (eg before reporting success) should wait on it.
+     * @throws IOException
+     */
+    public CompletableFuture<Void> commit() throws IOException {
+        // Close the current reader so that the next query sees the writes.
+        //
+        if (_reader != null) {
+            luceneIndex.releaseSharedReader(_reader);
+            _reader = null;
+        }
+
+        if (_writers == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        _committed = true;
+
+        // Wait on the partitions written to.
         //
-        if (_writer != null) {
-            luceneIndex.commitWrites();
+        IndexPartition[] partitions = partitions();
+        List<CompletableFuture<Void>> futures = AntLib.newList();
 
-            // Close the current reader.
-            //
-            if (_reader != null) {
-                luceneIndex.releaseSharedReader(_reader);
-                _reader = null;
+        for (int i = 0; i != _writers.length; i++) {
+            if (_writers[i] != null) {
+                futures.add(partitions[i].nextCommit());
             }
         }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
     }
 
     public IndexedFieldCountsBuilder indexedFieldCountsBuilder() {
@@ -305,7 +872,14 @@ public class Statement implements AutoCloseable {
         return new QueryBuilder(luceneIndex.getAnalyser());
     }
 
+    /**
+     * Gets the query parser of the statement. The parser is not thread safe,
+     * statements are local to a thread.
+     */
     public StandardQueryParser standardQueryParser() {
-        return new StandardQueryParser(luceneIndex.getAnalyser());
+        if (queryParser == null) {
+            queryParser = new StandardQueryParser(luceneIndex.getAnalyser());
+        }
+        return queryParser;
     }
 }
@@ -18,6 +18,8 @@ package suonos.lucene;
 
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.util.BytesRef;
 
 import com.github.am0e.commons.providers.Context;
 import com.github.am0e.jdi.scopes.SessionScope;
@@ -50,6 +52,10 @@ public class StatementContext {
     //
     private Field update$_field;
 
+    // Fields reused when building documents.
+    //
+    private final FieldPool fieldPool = new FieldPool();
+
     public IndexModels models() {
         return index.models();
     }
@@ -82,4 +88,85 @@ public class StatementContext {
         }
         return update$_field;
     }
+
+    public FieldPool fieldPool() {
+        return fieldPool;
+    }
+
+    /**
+     * Returns a pooled type$ field set to the value.
+     */
+    public Field type$_field(String value) {
+        Field fld = fieldPool.next("type$");
+        if (fld == null) {
+            fld = fieldPool.add("type$", new Field("type$", "", models().getFieldType("type$")));
+        }
+        fld.setStringValue(value);
+        return fld;
+    }
+
+    /**
+     * Returns a pooled type$s doc value field set to the value. The type of the
+     * document, used by the index sort. Not named type$ as segments written
+     * before the index sort have an indexed type$ field without doc values.
+     */
+    public Field type$s_field(String value) {
+        Field fld = fieldPool.next("type$s");
+        if (fld == null) {
+            fld = fieldPool.add("type$s", new SortedDocValuesField("type$s", new BytesRef()));
+        }
+        fld.setBytesValue(new BytesRef(value));
+        return fld;
+    }
+
+    /**
+     * Returns a pooled id$s doc value field set to the value. The id of the
+     * document, used to break ties between documents with the same sort
+     * values.
+     */
+    public Field id$s_field(String value) {
+        Field fld = fieldPool.next("id$s");
+        if (fld == null) {
+            fld = fieldPool.add("id$s", new SortedDocValuesField("id$s", new BytesRef()));
+        }
+        fld.setBytesValue(new BytesRef(value));
+        return fld;
+    }
+
+    /**
+     * Returns a pooled sort$ doc value field set to the value. The browse key
+     * of the document, used by the index sort.
+     */
+    public Field sort$_field(String value) {
+        Field fld = fieldPool.next("sort$");
+        if (fld == null) {
+            fld = fieldPool.add("sort$", new SortedDocValuesField("sort$", new BytesRef()));
+        }
+        fld.setBytesValue(new BytesRef(value));
+        return fld;
+    }
+
+    /**
+     * Returns a pooled obj$ field set to the value.
+     */
+    public Field obj$_field(BytesRef value) {
+        Field fld = fieldPool.next("obj$");
+        if (fld == null) {
+            fld = fieldPool.add("obj$", new Field("obj$", new byte[] {}, models().getFieldType("obj$")));
+        }
+        fld.setBytesValue(value);
+        return fld;
+    }
+
+    /**
+     * Returns a pooled update$ field set to the value.
+     */
+    public Field update$_field(int value) {
+        Field fld = fieldPool.next("update$");
+        if (fld == null) {
+            fld = fieldPool.add("update$", new IntField("update$", 0, models().getFieldType("update$")));
+        }
+        fld.setIntValue(value);
+        return fld;
+    }
 }
@@ -0,0 +1,372 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene.fields;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues.OrdinalMap;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.packed.PackedInts;
+
+import com.github.am0e.commons.AntLib;
+
+import suonos.app.utils.TagUtils;
+import suonos.models.annotations.Threaded;
+
+/**
+ * Cache of the facet counts of a segment, indexed by the ordinals of the doc
+ * values of the field. Segments never change, only their deleted documents,
+ * and deletes are only ever added to a segment. So the counts are valid as
+ * long as the number of deleted documents of the segment is the same. Only
+ * the counts of the newest reader of a segment are kept. The counts of a
+ * segment are removed when the segment is closed, eg once it has been merged
+ * away.
+ *
+ * The cache also holds the {@link OrdinalMap} of each field of a reader, used
+ * to merge the counts of the segments by global ordinal, and the
+ * {@link TermGroups} of the field, used to merge the terms that only differ by
+ * case or punctuation.
+ *
+ * @author anthony
+ */
+@Threaded
+public final class FacetCountsCache {
+
+    private static final class Entry {
+        final int numDeletedDocs;
+        final int[] counts;
+
+        Entry(int numDeletedDocs, int[] counts) {
+            this.numDeletedDocs = numDeletedDocs;
+            this.counts = counts;
+        }
+    }
+
+    /**
+     * The terms of a doc value field in a reader, merged by key. Terms that
+     * only differ by case or punctuation, eg "ABBA" and "abba", have the same
+     * key, see {@link TagUtils#convertStringToId(String)}, and are counted as
+     * one group. The groups are numbered in the order of their first term, so
+     * the group numbers are also the term order of the groups.
+     */
+    public static final class TermGroups {
+        final OrdinalMap ordinalMap;
+
+        /**
+         * The group of each global ordinal.
+         */
+        final int[] groups;
+
+        /**
+         * The global ordinal of the first term of each group.
+         */
+        final int[] firstOrds;
+
+        TermGroups(OrdinalMap ordinalMap, int[] groups, int[] firstOrds) {
+            this.ordinalMap = ordinalMap;
+            this.groups = groups;
+            this.firstOrds = firstOrds;
+        }
+
+        public OrdinalMap getOrdinalMap() {
+            return ordinalMap;
+        }
+
+        /**
+         * Gets the number of groups.
+         */
+        public int size() {
+            return firstOrds.length;
+        }
+
+        /**
+         * Gets the group of a global ordinal.
+         */
+        public int group(long globalOrd) {
+            return groups[(int) globalOrd];
+        }
+
+        /**
+         * Gets the global ordinal of the first term of a group, the term the
+         * group is shown as.
+         */
+        public int firstOrd(int group) {
+            return firstOrds[group];
+        }
+    }
+
+    /**
+     * The counts of each field, by segment core key.
+     */
+    private final ConcurrentHashMap<Object, ConcurrentHashMap<String, Entry>> segments = new ConcurrentHashMap<>();
+
+    /**
+     * The ordinal maps and term groups of each field, by reader.
+     */
+    private final ConcurrentHashMap<Object, ConcurrentHashMap<String, TermGroups>> termGroups =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Gets the counts of a doc value field in a segment. The counts are
+     * computed on the first call for the segment.
+     *
+     * @param reader
+     *            The segment reader.
+     * @param fld
+     *            The field. Must have doc values.
+     * @return The count of live documents for each ordinal of the field in the
+     *         segment, or null if no document of the segment has the field.
+     *         The array is shared and must not be modified.
+     */
+    public int[] getCounts(LeafReader reader, IndexedField fld) throws IOException {
+        Object key = reader.getCoreCacheKey();
+        ConcurrentHashMap<String, Entry> fields = segments.get(key);
+
+        if (fields == null) {
+            ConcurrentHashMap<String, Entry> map = new ConcurrentHashMap<>();
+            fields = segments.putIfAbsent(key, map);
+
+            if (fields == null) {
+                fields = map;
+                reader.addCoreClosedListener(ownerCoreCacheKey -> segments.remove(ownerCoreCacheKey));
+            }
+        }
+
+        int numDeletedDocs = reader.numDeletedDocs();
+        Entry entry = fields.get(fld.getName());
+
+        if (entry != null && entry.numDeletedDocs == numDeletedDocs) {
+            return entry.counts;
+        }
+
+        int[] counts = count(reader, fld, null);
+
+        // Keep the counts of the newest reader of the segment, the one with
+        // the most deletes. A previous reader still in use computes its
+        // counts without evicting them.
+        //
+        if (entry == null || entry.numDeletedDocs < numDeletedDocs) {
+            fields.merge(fld.getName(), new Entry(numDeletedDocs, counts),
+                    (cur, e) -> cur.numDeletedDocs >= e.numDeletedDocs ? cur : e);
+        }
+
+        return counts;
+    }
+
+    /**
+     * Gets the terms of a doc value field merged by key, with the map from the
+     * ordinals of each segment to the global ordinals of the field. The global
+     * ordinals are the position of the term in the sorted terms of all the
+     * segments. Each term is decoded once, when the groups are built on the
+     * first call for the reader. The groups are removed when the reader is
+     * closed.
+     *
+     * @param reader
+     *            The top level reader.
+     * @param fld
+     *            The field. Must have doc values.
+     * @return The groups, or null if no segment has the field.
+     */
+    public TermGroups getTermGroups(IndexReader reader, IndexedField fld) throws IOException {
+        Object key = reader.getCoreCacheKey();
+        ConcurrentHashMap<String, TermGroups> fields = termGroups.get(key);
+
+        if (fields == null) {
+            ConcurrentHashMap<String, TermGroups> map = new ConcurrentHashMap<>();
+            fields = termGroups.putIfAbsent(key, map);
+
+            if (fields == null) {
+                fields = map;
+                reader.addReaderClosedListener(closed -> termGroups.remove(key));
+            }
+        }
+
+        TermGroups groups = fields.get(fld.getName());
+
+        if (groups == null) {
+            List<LeafReaderContext> leaves = reader.leaves();
+            SortedSetDocValues[] values = new SortedSetDocValues[leaves.size()];
+            boolean found = false;
+
+            for (int i = 0; i != values.length; i++) {
+                values[i] = getValues(leaves.get(i).reader(), fld);
+
+                if (values[i] == null) {
+                    values[i] = DocValues.emptySortedSet();
+                } else {
+                    found = true;
+                }
+            }
+
+            if (!found) {
+                return null;
+            }
+
+            OrdinalMap map = OrdinalMap.build(key, values, PackedInts.DEFAULT);
+            TermGroups built = buildGroups(map, values);
+
+            groups = fields.putIfAbsent(fld.getName(), built);
+
+            if (groups == null) {
+                groups = built;
+            }
+        }
+
+        return groups;
+    }
+
+    /**
+     * Merges the terms of a field by key. The global ordinals are visited in
+     * term order, so the first term of each group is the first one seen.
+     */
+    private static TermGroups buildGroups(OrdinalMap map, SortedSetDocValues[] values) {
+        int valueCount = (int) map.getValueCount();
+        int[] groups = new int[valueCount];
+        int[] firstOrds = new int[valueCount];
+        Map<String, Integer> keys = AntLib.newHashMap();
+
+        for (int globalOrd = 0; globalOrd != valueCount; globalOrd++) {
+            SortedSetDocValues segmentValues = values[map.getFirstSegmentNumber(globalOrd)];
+            BytesRef term = segmentValues.lookupOrd(map.getFirstSegmentOrd(globalOrd));
+            String termKey = TagUtils.convertStringToId(term.utf8ToString());
+
+            Integer group = keys.get(termKey);
+
+            if (group == null) {
+                group = keys.size();
+                keys.put(termKey, group);
+                firstOrds[group] = globalOrd;
+            }
+
+            groups[globalOrd] = group;
+        }
+
+        return new TermGroups(map, groups, Arrays.copyOf(firstOrds, keys.size()));
+    }
+
+    /**
+     * Gets the doc values of a field in a segment. Single value fields are
+     * returned as a set of one value, with the same ordinals.
+     *
+     * @return The values or null if no document of the segment has the field.
+     */
+    public static SortedSetDocValues getValues(LeafReader reader, IndexedField fld) throws IOException {
+        if (fld.isMultiValue()) {
+            return reader.getSortedSetDocValues(fld.getName());
+        }
+
+        SortedDocValues values = reader.getSortedDocValues(fld.getName());
+        return values == null ? null : DocValues.singleton(values);
+    }
+
+    /**
+     * Gets the number of segments cached.
+     */
+    public int size() {
+        return segments.size();
+    }
+
+    /**
+     * Counts the ordinals of a doc value field in a segment.
+     *
+     * @param reader
+     *            The segment reader.
+     * @param fld
+     *            The field. Must have doc values.
+     * @param docs
+     *            The documents to count, or null for all the live documents.
+     * @return The count of each ordinal, or null if no document of the
+     *         segment has the field.
+     */
+    static int[] count(LeafReader reader, IndexedField fld, FixedBitSet docs) throws IOException {
+        Bits liveDocs = reader.getLiveDocs();
+        int maxDoc = reader.maxDoc();
+
+        if (fld.isMultiValue()) {
+            // Each document has a set of ordinals, eg the genres of an album.
+            //
+            SortedSetDocValues set = reader.getSortedSetDocValues(fld.getName());
+
+            if (set == null) {
+                return null;
+            }
+
+            int[] counts = new int[(int) set.getValueCount()];
+
+            for (int docId = nextDoc(docs, liveDocs, 0, maxDoc); docId < maxDoc; docId = nextDoc(docs, liveDocs,
+                    docId + 1, maxDoc)) {
+                set.setDocument(docId);
+
+                long ord;
+                while ((ord = set.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+                    counts[(int) ord]++;
+                }
+            }
+
+            return counts;
+        }
+
+        SortedDocValues values = reader.getSortedDocValues(fld.getName());
+
+        if (values == null) {
+            return null;
+        }
+
+        int[] counts = new int[values.getValueCount()];
+
+        for (int docId = nextDoc(docs, liveDocs, 0, maxDoc); docId < maxDoc; docId = nextDoc(docs, liveDocs,
+                docId + 1, maxDoc)) {
+            // -1 if the document does not have the field.
+            //
+            int ord = values.getOrd(docId);
+
+            if (ord >= 0) {
+                counts[ord]++;
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Returns the first document from docId to count, or maxDoc if there are
+     * none.
+     */
+    private static int nextDoc(FixedBitSet docs, Bits liveDocs, int docId, int maxDoc) {
+        if (docs != null) {
+            return docId >= maxDoc ? maxDoc : Math.min(docs.nextSetBit(docId), maxDoc);
+        }
+
+        while (docId < maxDoc && liveDocs != null && !liveDocs.get(docId)) {
+            docId++;
+        }
+
+        return docId;
+    }
+}
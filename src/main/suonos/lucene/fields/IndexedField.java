@@ -213,9 +213,45 @@ public class IndexedField {
 
         } else if (javaType == Byte[].class) {
             field.setBytesValue((byte[]) value);
+
+        } else {
+            throw Validate.notAllowed("");
         }
+    }
 
-        throw Validate.notAllowed("");
+    /**
+     * Sets the value of a field created by {@link #createDocValueField}.
+     * 
+     * @param field
+     * @param value
+     */
+    public void setDocValue(Field field, Object value) {
+        if (javaType == String.class) {
+            field.setBytesValue(new BytesRef(value.toString()));
+
+        } else if (javaType == Long.class && multiValue == false) {
+            field.setLongValue((Long) value);
+
+        } else if (javaType == Date.class && multiValue == false) {
+            field.setLongValue(((Date) value).getTime());
+
+        } else {
+            throw Validate.notAllowed("");
+        }
+    }
+
+    /**
+     * Sets the value of a field created by {@link #createField}.
+     * 
+     * @param field
+     * @param value
+     */
+    public void setFieldValue(Field field, Object value) {
+        if (docValues && !indexed) {
+            setDocValue(field, value);
+        } else {
+            setValue(field, value);
+        }
     }
 
     private String getBoolValue(Object value) {
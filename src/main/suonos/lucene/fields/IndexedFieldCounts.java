@@ -19,13 +19,49 @@ package suonos.lucene.fields;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.lucene.search.TopDocs;
+
 import com.github.am0e.commons.AntLib;
 
 public class IndexedFieldCounts {
     Map<String, IndexedFieldTermCount[]> fieldCounts = AntLib.newHashMap();
+    Map<String, Integer> totalTerms;
+    Map<String, Integer> nextOffsets;
+    TopDocs topDocs;
 
-    public IndexedFieldCounts(Map<String, IndexedFieldTermCount[]> fieldCounts) {
+    public IndexedFieldCounts(Map<String, IndexedFieldTermCount[]> fieldCounts, Map<String, Integer> totalTerms,
+            Map<String, Integer> nextOffsets, TopDocs topDocs) {
         this.fieldCounts = fieldCounts;
+        this.totalTerms = totalTerms;
+        this.nextOffsets = nextOffsets;
+        this.topDocs = topDocs;
+    }
+
+    /**
+     * Gets the number of terms of a field with a count, before paging.
+     */
+    public int getTotalTerms(String fieldName) {
+        Integer total = totalTerms.get(fieldName);
+        return total == null ? 0 : total;
+    }
+
+    /**
+     * Gets the offset of the page of terms after the page of a field.
+     *
+     * @return The offset or -1 if the page is the last one.
+     */
+    public int getNextOffset(String fieldName) {
+        Integer next = nextOffsets.get(fieldName);
+        return next == null ? -1 : next;
+    }
+
+    /**
+     * Gets the top hits of the query the counts are restricted to.
+     *
+     * @return The hits or null if the counts are for all documents.
+     */
+    public TopDocs getTopDocs() {
+        return topDocs;
     }
 
     public IndexedFieldTermCount[] getFieldTermCounts(String fieldName) {
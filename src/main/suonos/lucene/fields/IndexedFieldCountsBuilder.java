@@ -17,192 +17,671 @@
 package suonos.lucene.fields;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReader;
-import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues.OrdinalMap;
+import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.SortedSetDocValues;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
-import org.apache.lucene.util.Bits;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MultiCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.LongValues;
+import org.apache.lucene.util.StringHelper;
 
 import com.github.am0e.commons.AntLib;
 
-import gnu.trove.map.hash.TIntIntHashMap;
 import suonos.app.utils.TagUtils;
 import suonos.lucene.IndexModels;
+import suonos.lucene.LuceneIndex;
 import suonos.lucene.Statement;
+import suonos.lucene.fields.FacetCountsCache.TermGroups;
 
 public class IndexedFieldCountsBuilder {
-    Map<String, IndexedFieldTermCount[]> fieldCounts = AntLib.newHashMap();
+    Map<String, IndexedFieldTermCount[]> fieldCounts = new LinkedHashMap<>();
+    Map<String, Integer> totalTerms = AntLib.newHashMap();
+    Map<String, Integer> nextOffsets = AntLib.newHashMap();
+    private IndexSearcher searcher;
     private IndexReader ir;
     private IndexModels models;
+    private FacetCountsCache countsCache;
+    private ForkJoinPool facetPool;
+
+    /**
+     * The documents matching the query of {@link #setQuery(Query, int)}, by
+     * segment. Null to count all the documents.
+     */
+    private FixedBitSet[] matchingDocs;
+    private TopDocs topDocs;
+
+    /**
+     * The page of terms returned for each field. A limit of -1 returns all
+     * the terms.
+     */
+    private int offset;
+    private int limit = -1;
+    private boolean sortByCount;
+
+    /**
+     * Number of leading characters of the filter the terms enum is positioned
+     * on, in each combination of upper and lower case.
+     */
+    private static final int SEEK_PREFIX_LENGTH = 3;
+
+    /**
+     * Visits a term of a terms enum.
+     */
+    private interface TermVisitor {
+        void visit(TermsEnum te) throws IOException;
+    }
+
+    /**
+     * The page of terms of a field.
+     */
+    private static final class FieldCounts {
+        final IndexedFieldTermCount[] list;
+        final int total;
+        final int nextOffset;
+
+        FieldCounts(IndexedFieldTermCount[] list, int total, int nextOffset) {
+            this.list = list;
+            this.total = total;
+            this.nextOffset = nextOffset;
+        }
+    }
 
     public IndexedFieldCountsBuilder(Statement stmt) {
-        this.ir = stmt.indexReader();
-        this.models = stmt.luceneIndex().models();
+        this(stmt.indexSearcher(), stmt.luceneIndex().models(), stmt.luceneIndex().getFacetCountsCache(),
+                stmt.luceneIndex().getFacetPool());
+    }
+
+    /**
+     * @param facetPool
+     *            The pool the fields are counted on, or null to count them in
+     *            the calling thread.
+     */
+    public IndexedFieldCountsBuilder(IndexSearcher searcher, IndexModels models, FacetCountsCache countsCache,
+            ForkJoinPool facetPool) {
+        this.searcher = searcher;
+        this.ir = searcher.getIndexReader();
+        this.models = models;
+        this.countsCache = countsCache;
+        this.facetPool = facetPool;
     }
 
+    /**
+     * Counts only the documents matching a query. The query is run once, and
+     * the same pass collects the top hits and the matching documents of each
+     * segment for the fields added after.
+     *
+     * @param query
+     *            The query.
+     * @param maxHits
+     *            The number of top hits to collect.
+     */
+    public IndexedFieldCountsBuilder setQuery(Query query, int maxHits) throws IOException {
+        FixedBitSet[] docs = new FixedBitSet[ir.leaves().size()];
+
+        SimpleCollector matching = new SimpleCollector() {
+            FixedBitSet bits;
+
+            @Override
+            protected void doSetNextReader(LeafReaderContext context) throws IOException {
+                bits = docs[context.ord] = new FixedBitSet(context.reader().maxDoc());
+            }
+
+            @Override
+            public void collect(int doc) throws IOException {
+                bits.set(doc);
+            }
+
+            @Override
+            public boolean needsScores() {
+                return false;
+            }
+        };
+
+        TopScoreDocCollector top = TopScoreDocCollector.create(Math.max(maxHits, 1));
+
+        searcher.search(query, MultiCollector.wrap(top, matching));
+
+        this.matchingDocs = docs;
+        this.topDocs = top.topDocs(0, maxHits);
+        return this;
+    }
+
+    /**
+     * Sets the page of terms returned for the fields added after.
+     *
+     * @param offset
+     *            The number of terms to skip.
+     * @param limit
+     *            The maximum number of terms, -1 for all.
+     */
+    public IndexedFieldCountsBuilder setPage(int offset, int limit) {
+        this.offset = Math.max(offset, 0);
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Sorts the terms by count, highest first, rather than by term.
+     */
+    public IndexedFieldCountsBuilder setSortByCount(boolean sortByCount) {
+        this.sortByCount = sortByCount;
+        return this;
+    }
+
+    /**
+     * Counts the terms of a field.
+     *
+     * @param fieldName
+     *            The field. Eg "album_genres".
+     * @param filter
+     *            Only count the terms starting with the filter, ignoring case.
+     *            Null for all the terms.
+     */
     public IndexedFieldCountsBuilder addField(String fieldName, String filter) throws IOException {
+        return addFields(new String[] { fieldName }, filter);
+    }
+
+    /**
+     * Counts the terms of several fields. The fields, and the segments of
+     * each field, are counted concurrently on the facet pool, see
+     * {@link LuceneIndex#getFacetPool()}. The counts of the segments are
+     * merged in segment order and the fields are added in the order given, so
+     * the results do not depend on the order the tasks complete.
+     *
+     * @param fieldNames
+     *            The fields. Eg "album_genres", "album_artists".
+     * @param filter
+     *            Only count the terms starting with the filter, ignoring case.
+     *            Null for all the terms.
+     */
+    public IndexedFieldCountsBuilder addFields(String[] fieldNames, String filter) throws IOException {
+        final byte[] prefix = filter == null || filter.isEmpty() ? null
+                : filter.toLowerCase().getBytes(StandardCharsets.UTF_8);
+
+        IndexedField[] flds = new IndexedField[fieldNames.length];
+
+        for (int i = 0; i != flds.length; i++) {
+            flds[i] = models.indexedField(fieldNames[i]);
+        }
+
+        FieldCounts[] results = new FieldCounts[flds.length];
+
+        if (facetPool == null) {
+            for (int i = 0; i != flds.length; i++) {
+                results[i] = countField(flds[i], prefix);
+            }
+
+        } else {
+            List<ForkJoinTask<FieldCounts>> tasks = AntLib.newList();
+
+            for (IndexedField fld : flds) {
+                tasks.add(facetPool.submit(() -> countField(fld, prefix)));
+            }
+
+            for (int i = 0; i != flds.length; i++) {
+                results[i] = join(tasks.get(i));
+            }
+        }
+
+        // add to the map.
+        //
+        for (int i = 0; i != flds.length; i++) {
+            this.fieldCounts.put(flds[i].getName(), results[i].list);
+            this.totalTerms.put(flds[i].getName(), results[i].total);
+            this.nextOffsets.put(flds[i].getName(), results[i].nextOffset);
+        }
+
+        return this;
+    }
+
+    /**
+     * Counts the terms of a field and returns the page. The terms are merged
+     * by key, sorted and paged here only, so the page, the total and the
+     * offset of the next page are all taken from the same sequence of terms.
+     */
+    private FieldCounts countField(IndexedField fld, byte[] prefix) throws IOException {
+        if (fld.isDocValues()) {
+            return countDocValues(fld, prefix);
+        }
 
-        final IndexedField fld = models.indexedField(fieldName);
         final Map<String, IndexedFieldTermCount> valuesMap = AntLib.newHashMap();
-        final TIntIntHashMap ordCounts = new TIntIntHashMap();
 
-        if (filter != null) {
-            filter = filter.toLowerCase();
+        addTermCounts(fld, valuesMap, prefix);
+
+        // Sort by term or by count. The terms are unique, as each key has a
+        // single term, so the order is the same for every page.
+        //
+        Comparator<IndexedFieldTermCount> order = sortByCount
+                ? (a, b) -> a.docFreq != b.docFreq ? Integer.compare(b.docFreq, a.docFreq) : a.compareTo(b)
+                : (a, b) -> a.compareTo(b);
+
+        // Bounded queue of the terms up to the end of the page, the last one
+        // in page order first.
+        //
+        int total = valuesMap.size();
+        int n = pageEnd(total);
+        PriorityQueue<IndexedFieldTermCount> top = new PriorityQueue<>(Math.max(n, 1), order.reversed());
+
+        for (IndexedFieldTermCount it : valuesMap.values()) {
+            if (top.size() < n) {
+                top.add(it);
+            } else if (n != 0 && order.compare(it, top.peek()) < 0) {
+                top.poll();
+                top.add(it);
+            }
         }
 
-        // Get count of segments.
+        // The page.
         //
-        int sz = ir.leaves().size();
+        int from = Math.min(offset, n);
+        IndexedFieldTermCount[] list = new IndexedFieldTermCount[n - from];
+
+        for (int i = list.length - 1; i >= 0; i--) {
+            list[i] = top.poll();
+        }
+
+        return new FieldCounts(list, total, n < total ? n : -1);
+    }
+
+    /**
+     * Returns the number of terms up to the end of the page.
+     *
+     * @param total
+     *            The number of terms.
+     */
+    private int pageEnd(int total) {
+        return limit < 0 ? total : (int) Math.min((long) offset + limit, total);
+    }
+
+    /**
+     * Counts a doc value field. Doc values are a dictionary of the unique
+     * values of the segment, and ordinals are dense and in increasing sorted
+     * order. The counts of each segment, see {@link FacetCountsCache}, are
+     * added up by group of terms, see {@link TermGroups}, so no term is
+     * decoded to count the field. The page is selected on the counts of the
+     * groups, and only the terms of the page are decoded.
+     */
+    private FieldCounts countDocValues(IndexedField fld, byte[] prefix) throws IOException {
+        TermGroups groups = countsCache.getTermGroups(ir, fld);
+
+        if (groups == null) {
+            return new FieldCounts(new IndexedFieldTermCount[0], 0, -1);
+        }
+
+        OrdinalMap ordinalMap = groups.getOrdinalMap();
+        List<LeafReaderContext> leaves = ir.leaves();
+        int[] groupCounts = new int[groups.size()];
+        int[][] allCounts = segmentCounts(leaves, fld);
+
+        for (int i = 0; i != leaves.size(); i++) {
+            LeafReader lr = leaves.get(i).reader();
+            int[] counts = allCounts[i];
+
+            if (counts == null) {
+                continue;
+            }
+
+            LongValues globalOrds = ordinalMap.getGlobalOrds(i);
 
-        for (int i = 0; i != sz; i++) {
-            // Get the segment reader.
+            // Only deleted or unmatched documents have the term if 0.
             //
-            LeafReader lr = ir.leaves().get(i).reader();
+            if (prefix == null) {
+                for (int ord = 0; ord != counts.length; ord++) {
+                    if (counts[ord] != 0) {
+                        groupCounts[groups.group(globalOrds.get(ord))] += counts[ord];
+                    }
+                }
+
+            } else {
+                forEachPrefixTerm(FacetCountsCache.getValues(lr, fld).termsEnum(), prefix, te -> {
+                    int ord = (int) te.ord();
+
+                    if (counts[ord] != 0) {
+                        groupCounts[groups.group(globalOrds.get(ord))] += counts[ord];
+                    }
+                });
+            }
+        }
+
+        // The groups up to the end of the page, in page order.
+        //
+        int n = pageEnd(groupCounts.length);
+        int total = 0;
+        int[] selected;
 
-            // Doc count for field. Eg "album_genres"
+        if (sortByCount) {
+            // Bounded queue of the top counts, ties in term order. Each entry
+            // is the count in the high bits and the group in the low bits.
             //
-            lr.getDocCount(fld.getName());
+            PriorityQueue<Long> top = new PriorityQueue<>(Math.max(n, 1));
+
+            for (int group = 0; group != groupCounts.length; group++) {
+                if (groupCounts[group] != 0) {
+                    long entry = ((long) groupCounts[group] << 32) | (Integer.MAX_VALUE - group);
+                    total++;
+
+                    if (top.size() < n) {
+                        top.add(entry);
+                    } else if (n != 0 && entry > top.peek()) {
+                        top.poll();
+                        top.add(entry);
+                    }
+                }
+            }
 
-            // Get all documents that have the field "album_genres"
+            // The queue returns the lowest entry first.
             //
-            Bits docs = lr.getDocsWithField(fld.getName());
-            ordCounts.clear();
+            selected = new int[top.size()];
+
+            for (int i = selected.length - 1; i >= 0; i--) {
+                selected[i] = Integer.MAX_VALUE - (int) (top.poll() & 0xFFFFFFFFL);
+            }
 
-            // Enumerate the field terms.
+        } else {
+            // The groups are numbered in term order.
             //
-            if (fld.isDocValues()) {
-                if (fld.isMultiValue()) {
-                    // docvalues & multivalue is a SortedSetDocValues
-                    // Per-Document values in a SortedDocValues are
-                    // deduplicated, dereferenced, and sorted into a dictionary
-                    // of
-                    // unique values. A pointer to the dictionary value
-                    // (ordinal) can be retrieved for each document.
-                    // Ordinals are dense and in increasing sorted order.
-                    //
-                    SortedSetDocValues set = lr.getSortedSetDocValues(fld.getName());
-
-                    if (set != null) {
-                        // For all documents that have the field "album_genres":
-                        //
-                        for (int docId = 0; docId != docs.length(); docId++) {
-                            if (docs.get(docId)) {
-                                // Enumerate the set of [terms] of
-                                // "album_genres" for the document represented
-                                // by docId.
-                                // Each ord represents the term value.
-                                //
-                                set.setDocument(docId);
-
-                                // For each term bump up the frequency.
-                                //
-                                long ord;
-                                while ((ord = set.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
-                                    ordCounts.adjustOrPutValue((int) ord, 1, 1);
-
-                                    System.out.println("term=" + set.lookupOrd(ord).utf8ToString());
-                                }
-                            }
-                        }
-
-                        TermsEnum te = set.termsEnum();
-                        BytesRef term;
-
-                        while ((term = te.next()) != null) {
-
-                            int ord = (int) te.ord();
-
-                            add(fld, valuesMap, filter, term, ordCounts.get(ord));
-                        }
+            selected = new int[n];
 
+            for (int group = 0; group != groupCounts.length; group++) {
+                if (groupCounts[group] != 0) {
+                    if (total < n) {
+                        selected[total] = group;
                     }
+                    total++;
+                }
+            }
+
+            if (total < n) {
+                selected = Arrays.copyOf(selected, total);
+            }
+        }
 
-                } else {
-                    SortedDocValues set = lr.getSortedDocValues(fld.getName());
-
-                    if (set != null) {
-                        // For all documents that have the field "album_genres":
-                        //
-                        for (int docId = 0; docId != docs.length(); docId++) {
-                            if (docs.get(docId)) {
-                                // Get the term - Classical, Rock, etc.
-                                //
-                                BytesRef term = set.get(docId);
-
-                                add(fld, valuesMap, filter, term, 1);
-                            }
-                        }
+        // Decode the first term of each group of the page. The values of each
+        // segment are opened on the first term of the segment.
+        //
+        int from = Math.min(offset, selected.length);
+        IndexedFieldTermCount[] list = new IndexedFieldTermCount[selected.length - from];
+        SortedSetDocValues[] values = new SortedSetDocValues[leaves.size()];
+
+        for (int i = from; i != selected.length; i++) {
+            int group = selected[i];
+            int globalOrd = groups.firstOrd(group);
+            int segment = ordinalMap.getFirstSegmentNumber(globalOrd);
+
+            if (values[segment] == null) {
+                values[segment] = FacetCountsCache.getValues(leaves.get(segment).reader(), fld);
+            }
+
+            String term = values[segment].lookupOrd(ordinalMap.getFirstSegmentOrd(globalOrd)).utf8ToString();
+            IndexedFieldTermCount c = new IndexedFieldTermCount(fld, term, TagUtils.convertStringToId(term));
+            c.docFreq = groupCounts[group];
+            list[i - from] = c;
+        }
+
+        return new FieldCounts(list, total, selected.length < total ? selected.length : -1);
+    }
+
+    /**
+     * Gets the counts of each segment. The segments are counted concurrently
+     * if called from the facet pool.
+     */
+    private int[][] segmentCounts(List<LeafReaderContext> leaves, IndexedField fld) throws IOException {
+        int[][] counts = new int[leaves.size()][];
+
+        if (!ForkJoinTask.inForkJoinPool() || leaves.size() == 1) {
+            for (int i = 0; i != counts.length; i++) {
+                counts[i] = segmentCounts(i, leaves.get(i).reader(), fld);
+            }
+            return counts;
+        }
+
+        List<ForkJoinTask<?>> tasks = AntLib.newList();
+
+        for (int i = 0; i != counts.length; i++) {
+            final int segment = i;
+
+            tasks.add(ForkJoinTask.adapt(() -> {
+                try {
+                    counts[segment] = segmentCounts(segment, leaves.get(segment).reader(), fld);
+
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
+
+        try {
+            ForkJoinTask.invokeAll(tasks);
+
+        } catch (UncheckedIOException e) {
+            throw unwrap(e);
+        }
+
+        return counts;
+    }
+
+    /**
+     * Gets the counts of each ordinal of a segment: cached if all the
+     * documents are counted, else computed from the documents matching the
+     * query.
+     */
+    private int[] segmentCounts(int segment, LeafReader lr, IndexedField fld) throws IOException {
+        if (matchingDocs == null) {
+            return countsCache.getCounts(lr, fld);
+        }
+
+        return matchingDocs[segment] == null ? null : FacetCountsCache.count(lr, fld, matchingDocs[segment]);
+    }
+
+    /**
+     * Counts a normal field, not a doc value, from the terms dictionary of
+     * each segment.
+     */
+    private void addTermCounts(IndexedField fld, Map<String, IndexedFieldTermCount> valuesMap, byte[] prefix)
+            throws IOException {
+
+        List<LeafReaderContext> leaves = ir.leaves();
+
+        for (int i = 0; i != leaves.size(); i++) {
+            Terms terms = leaves.get(i).reader().terms(fld.getName());
+
+            if (terms == null || (matchingDocs != null && matchingDocs[i] == null)) {
+                continue;
+            }
+
+            final FixedBitSet docs = matchingDocs == null ? null : matchingDocs[i];
+            final PostingsEnum[] postings = new PostingsEnum[1];
+
+            TermVisitor visitor = te -> {
+                if (docs == null) {
+                    add(fld, valuesMap, te.term(), te.docFreq());
+                    return;
+                }
+
+                // Count the matching documents with the term.
+                //
+                postings[0] = te.postings(null, postings[0], PostingsEnum.NONE);
+                int count = 0;
+                int doc;
+
+                while ((doc = postings[0].nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                    if (docs.get(doc)) {
+                        count++;
                     }
                 }
+
+                if (count != 0) {
+                    add(fld, valuesMap, te.term(), count);
+                }
+            };
+
+            TermsEnum te = terms.iterator();
+
+            if (prefix == null) {
+                while (te.next() != null) {
+                    visitor.visit(te);
+                }
             } else {
-                // Normal field, not a doc value.
-                //
-                Terms terms = lr.terms(fld.getName());
-                TermsEnum te = terms.iterator();
+                forEachPrefixTerm(te, prefix, visitor);
+            }
+        }
+    }
+
+    /**
+     * Visits the terms starting with a prefix, ignoring case. The enum is
+     * positioned with seekCeil on each combination of upper and lower case of
+     * the first characters of the prefix, and the walk stops at the first term
+     * that does not start with them.
+     *
+     * @param prefix
+     *            The prefix in lower case.
+     */
+    private static void forEachPrefixTerm(TermsEnum te, byte[] prefix, TermVisitor visitor) throws IOException {
+        for (BytesRef seek : seekPrefixes(prefix)) {
+            if (te.seekCeil(seek) == TermsEnum.SeekStatus.END) {
+                continue;
+            }
+
+            for (BytesRef term = te.term(); term != null && StringHelper.startsWith(term, seek); term = te.next()) {
+                if (startsWithIgnoreCase(term, prefix)) {
+                    visitor.visit(te);
+                }
+            }
+        }
+    }
 
-                BytesRef term;
-                while ((term = te.next()) != null) {
-                    add(fld, valuesMap, filter, term, te.docFreq());
+    /**
+     * Returns the combinations of upper and lower case of the first
+     * characters of the prefix, in term order.
+     */
+    private static List<BytesRef> seekPrefixes(byte[] prefix) {
+        int len = Math.min(prefix.length, SEEK_PREFIX_LENGTH);
+        List<BytesRef> list = AntLib.newList();
+        list.add(new BytesRef(prefix, 0, len));
+
+        for (int i = 0; i != len; i++) {
+            byte b = prefix[i];
+
+            if (b >= 'a' && b <= 'z') {
+                int sz = list.size();
+
+                for (int j = 0; j != sz; j++) {
+                    BytesRef upper = BytesRef.deepCopyOf(list.get(j));
+                    upper.bytes[i] = (byte) (b - 32);
+                    list.add(upper);
                 }
             }
+        }
 
-            /*
-             * SORTED doc[0] = "aardvark" doc[1] = "beaver" doc[2] = "aardvark"
-             * 
-             * doc[0] = 0 doc[1] = 1 doc[2] = 0
-             * 
-             * term[0] = "aardvark" term[1] = "beaver"
-             */
+        Collections.sort(list);
+        return list;
+    }
 
-            // http://127.0.0.1:8080/api/facets?fields=track_title_a
-            // the above should return B:(4) because titles starting with B are
-            // 4!
+    private static boolean startsWithIgnoreCase(BytesRef term, byte[] prefix) {
+        if (term.length < prefix.length) {
+            return false;
         }
 
-        // Get the array of term counters.
-        //
-        IndexedFieldTermCount[] list = valuesMap.values().toArray(new IndexedFieldTermCount[0]);
+        for (int i = 0; i != prefix.length; i++) {
+            byte b = term.bytes[term.offset + i];
 
-        // Sort by term.
-        //
-        Arrays.sort(list);
+            if (b >= 'A' && b <= 'Z') {
+                b += 32;
+            }
 
-        // add to the map.
-        //
-        this.fieldCounts.put(fld.getName(), list);
+            if (b != prefix[i]) {
+                return false;
+            }
+        }
 
-        return this;
+        return true;
+    }
+
+    private static FieldCounts join(ForkJoinTask<FieldCounts> task) throws IOException {
+        try {
+            return task.get();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    /**
+     * Gets the IOException thrown by a task. Exceptions thrown in another
+     * thread may be wrapped, see {@link ForkJoinTask#get()}.
+     */
+    private static IOException unwrap(Throwable e) {
+        for (Throwable it = e; it != null; it = it.getCause()) {
+            if (it instanceof IOException) {
+                return (IOException) it;
+            }
+        }
+
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+
+        return new IOException(e);
     }
 
-    void add(IndexedField fld, Map<String, IndexedFieldTermCount> valuesMap, String filter, BytesRef term,
-            int docFreq) {
+    void add(IndexedField fld, Map<String, IndexedFieldTermCount> valuesMap, BytesRef term, int docFreq) {
 
         String termVal = term.utf8ToString();
 
-        // Case insensitive comparison.
+        // Case insensitive key, terms that only differ by case or punctuation
+        // are merged.
         //
         String termValLC = TagUtils.convertStringToId(termVal);
-        if (filter != null && !termValLC.startsWith(filter)) {
-            return;
-        }
 
         IndexedFieldTermCount c = valuesMap.get(termValLC);
 
-        if (c == null) {
-            valuesMap.put(termValLC, c = new IndexedFieldTermCount(fld, termVal, termValLC));
+        // The merged terms are shown as the first term in term order, whatever
+        // the order the segments are visited.
+        //
+        if (c == null || termVal.compareTo(c.getTerm()) < 0) {
+            IndexedFieldTermCount first = new IndexedFieldTermCount(fld, termVal, termValLC);
+
+            if (c != null) {
+                first.docFreq = c.docFreq;
+            }
+
+            valuesMap.put(termValLC, c = first);
         }
 
         c.docFreq += docFreq;
-        System.out.println("term=" + termVal + " " + docFreq);
     }
 
     public IndexedFieldCounts build() {
-        return new IndexedFieldCounts(this.fieldCounts);
+        return new IndexedFieldCounts(this.fieldCounts, this.totalTerms, this.nextOffsets, topDocs);
     }
 }
@@ -28,9 +28,9 @@ public class StoreObject {
     private static final int STORE_QUERIED = 1;
 
     /**
-     * id. This is the PK. It is a unique id.
+     * id. This is the PK. It is a unique id. Stored for projections.
      */
-    @IndexField(idField = true, prefixed = false, analyzer = "keyword")
+    @IndexField(idField = true, prefixed = false, stored = true, analyzer = "keyword")
     private String id;
 
     /**
@@ -17,15 +17,16 @@
 package suonos.models.music;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
-import com.github.am0e.commons.msgs.Msgs;
 
 import suonos.app.SuonosLib;
 import suonos.app.utils.BeanSort;
 import suonos.lucene.DynamicIndexedFieldCtx;
 import suonos.lucene.DynamicIndexedFields;
+import suonos.lucene.RelationLoader;
 import suonos.models.Playable;
 import suonos.models.PlayableContainer;
 import suonos.models.Rateable;
@@ -49,10 +50,10 @@ public final class MusicAlbum extends StoreObject
 
     /**
      * Album title. filterable to allow for browsing albums by the first letter.
-     * Also allows for sorting.
+     * Also allows for sorting. Stored for projections.
      * 
      */
-    @IndexField(indexed = true, filterable = true, analyzer = "default")
+    @IndexField(indexed = true, filterable = true, stored = true, analyzer = "default")
     private String title;
 
     /**
@@ -85,15 +86,27 @@ public final class MusicAlbum extends StoreObject
     private int rating;
 
     /**
-     * Does the album have cover artwork?
+     * Does the album have cover artwork? Stored for projections, not indexed.
      */
+    @IndexField(indexed = false, stored = true, analyzer = "keyword")
     private boolean coverArtwork;
 
     /**
-     * Cached tracks.
+     * The tracks, loaded on demand. Objects returned by queries are not shared
+     * between requests, so the tracks are those of the reader of the request.
      */
     private transient List<MusicTrack> _tracks;
 
+    /**
+     * Loads the tracks of albums. Use to load the tracks of a page of albums
+     * at once rather than calling {@link #getTracks()} on each album.
+     */
+    public static final RelationLoader<MusicAlbum, MusicTrack> TRACKS = new RelationLoader<>(MusicTrack.class,
+            "track_albumId", (album, tracks) -> {
+                BeanSort.sort(tracks, "trackNumber", false);
+                album._tracks = tracks;
+            });
+
     /**
      * Cached tags. Loaded once.
      */
@@ -211,10 +224,7 @@ public final class MusicAlbum extends StoreObject
      */
     public List<MusicTrack> getTracks() throws IOException {
         if (_tracks == null) {
-            _tracks = SuonosLib.lib().stmt().queryRelated(MusicTrack.class,
-                    Msgs.format("track_albumId:{}", this.getId()));
-
-            BeanSort.sort(_tracks, "trackNumber", false);
+            TRACKS.load(SuonosLib.lib().stmt(), Collections.singletonList(this));
         }
 
         return _tracks;
@@ -17,6 +17,7 @@
 package suonos.models.playlist;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
 
 import com.github.am0e.commons.AntLib;
@@ -94,9 +95,11 @@ public class Playlist extends StoreObject implements Playable, PlayableContainer
     public List<? extends Playable> getPlayableItems() throws IOException {
         List<Playable> playables = AntLib.newList();
 
-        for (StoreObject it : getRelatedItems()) {
-            if (it instanceof Playable) {
-                playables.add((Playable) it);
+        for (Iterator<StoreObject> it = getRelatedItems().cursor(); it.hasNext();) {
+            StoreObject obj = it.next();
+
+            if (obj instanceof Playable) {
+                playables.add((Playable) obj);
             }
         }
         return playables;
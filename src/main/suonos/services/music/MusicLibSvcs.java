@@ -18,6 +18,7 @@ package suonos.services.music;
 
 import java.io.IOException;
 
+import suonos.models.music.MusicAlbum;
 import suonos.models.music.MusicLib;
 import suonos.services.AbstractSvcs;
 import suonos.services.ServiceException;
@@ -25,11 +26,37 @@ import suonos.services.music.tasks.RebuildMusicLibraryTask;
 
 public class MusicLibSvcs extends AbstractSvcs {
     /**
-     * Rebuilds the music library database.
+     * Rebuilds the music library database. A library that has been built
+     * before is rebuilt into a new index, so that it can be searched while the
+     * rebuild runs.
      */
     public void rebuildLibrary(MusicLib mediaLib) {
         try {
-            lib.instanceOf(RebuildMusicLibraryTask.class).run(mediaLib);
+            boolean built = lib.stmt().queryHelper().setType(MusicAlbum.class).setMax(1).query().totalHits() != 0;
+
+            rebuildLibrary(mediaLib, built);
+
+        } catch (IOException e) {
+            throw new ServiceException(e);
+        }
+    }
+
+    /**
+     * Rebuilds the music library database.
+     * 
+     * @param shadow
+     *            True to build into a new index swapped in when complete. The
+     *            live index is not updated while the rebuild runs.
+     */
+    public void rebuildLibrary(MusicLib mediaLib, boolean shadow) {
+        try {
+            RebuildMusicLibraryTask task = lib.instanceOf(RebuildMusicLibraryTask.class);
+
+            if (shadow) {
+                task.setShadowRebuild();
+            }
+
+            task.run(mediaLib);
 
         } catch (IOException e) {
             throw new ServiceException(e);
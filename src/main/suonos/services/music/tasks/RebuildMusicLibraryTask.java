@@ -21,8 +21,11 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.lucene.search.Query;
 import org.jaudiotagger.audio.AudioFile;
@@ -44,7 +47,10 @@ import suonos.app.utils.FileWalker;
 import suonos.app.utils.FilesUtils;
 import suonos.app.utils.TagUtils;
 import suonos.imagems.Imagems;
+import suonos.lucene.IndexRebuild;
+import suonos.lucene.QueryHelper;
 import suonos.lucene.Statement;
+import suonos.models.StoreObject;
 import suonos.models.TaskError;
 import suonos.models.media.MediaTag;
 import suonos.models.media.MediaTagValue;
@@ -76,6 +82,9 @@ public class RebuildMusicLibraryTask extends AbstractTask {
     private List<MusicTrack> tracksList = AntLib.newList();
     private Map<String, MusicAlbum> albumsMap = AntLib.newHashMap();
     private boolean rebuildMetaData;
+    private boolean shadowRebuild;
+    private boolean emptyIndex;
+    private Set<String> savedIds = new HashSet<>();
     private Date importDate = new Date();
     private Imagems imagems = lib.instanceOf(Imagems.class);
 
@@ -95,12 +104,56 @@ public class RebuildMusicLibraryTask extends AbstractTask {
         //
         stmt = lib.stmt();
 
+        // Nothing to replace in an empty index, the objects are added without
+        // a delete by id. See saveObjects().
+        //
+        emptyIndex = stmt.indexWriter(MusicAlbum.class).numDocs() == 0
+                && stmt.indexWriter(MusicTrack.class).numDocs() == 0;
+
+        if (shadowRebuild) {
+            rebuildIntoShadowIndex();
+            return;
+        }
+
         buildIndex();
 
         // musicLibBuildId = "7Bgc9XhpYNdF";
         cleanupIndex();
     }
 
+    /**
+     * Builds the albums and tracks into new index partitions and swaps them
+     * in once complete. Searches see the previous library until then.
+     */
+    private void rebuildIntoShadowIndex() throws IOException {
+        try (IndexRebuild rebuild = stmt.luceneIndex().beginRebuild(MusicAlbum.class, MusicTrack.class)) {
+            stmt = rebuild.statement();
+            emptyIndex = true;
+
+            buildIndex();
+
+            // Carry over the albums and tracks that were not built from the
+            // music files.
+            //
+            copyUserObjects(MusicAlbum.class, "musicLib");
+            copyUserObjects(MusicTrack.class, "musicLib");
+
+            rebuild.swap();
+        }
+    }
+
+    private void copyUserObjects(Class<? extends StoreObject> type, String prefix) throws IOException {
+        QueryHelper qh = stmt.queryHelper();
+        Query query = qh.boolQuery().type(type).mustNot(prefix + "AutoBuilt", "1").build();
+
+        List<StoreObject> objects = qh.setQuery(query).<StoreObject> query().all();
+
+        if (!objects.isEmpty()) {
+            Statement.log.debug("Copying {} {} objects", objects.size(), type.getSimpleName());
+            saveObjects(objects);
+        }
+    }
+
     private void buildIndex() throws IOException {
         // Walk the files, depth first.
         //
@@ -128,18 +181,48 @@ public class RebuildMusicLibraryTask extends AbstractTask {
     private void cleanupIndex() throws IOException {
         // Cleanup the previous objects that have been updated.
         //
+        // The deleted documents are merged away by the merge policy and the
+        // idle merger, see LuceneIndex.
+        //
         deletePreviousObjects("musicLib");
-        stmt.mergeAndCommit();
+        stmt.commit();
     }
 
     public void deletePreviousObjects(String prefix) throws IOException {
 
-        Query query = stmt.queryHelper().createFmtQuery("+{}AutoBuilt:1 -{}BuildId:{}", prefix, prefix,
-                musicLibBuildId);
+        Query query = stmt.queryHelper().boolQuery().must(prefix + "AutoBuilt", "1")
+                .mustNot(prefix + "BuildId", musicLibBuildId).build();
 
         stmt.deleteObjects(query);
     }
 
+    /**
+     * Saves the objects. When building into an empty index, the objects not
+     * saved before during this build are added in batches. An id seen twice,
+     * for example in a copied album folder, replaces the previous document
+     * as it would in the live index.
+     */
+    private void saveObjects(Collection<? extends StoreObject> objects) throws IOException {
+        if (!emptyIndex) {
+            stmt.saveObjects(objects);
+            return;
+        }
+
+        List<StoreObject> added = AntLib.newList(objects.size());
+        List<StoreObject> replaced = AntLib.newList();
+
+        for (StoreObject it : objects) {
+            if (savedIds.add(it.getId())) {
+                added.add(it);
+            } else {
+                replaced.add(it);
+            }
+        }
+
+        stmt.saveObjects(added, true);
+        stmt.saveObjects(replaced);
+    }
+
     private boolean isKnownMediaFile(Path file) {
         if (file.toString().endsWith(".mp3"))
             return true;
@@ -177,8 +260,8 @@ public class RebuildMusicLibraryTask extends AbstractTask {
 
         // Save the objects to the data store.
         //
-        stmt.saveObjects(albumsMap.values());
-        stmt.saveObjects(tracksList);
+        saveObjects(albumsMap.values());
+        saveObjects(tracksList);
         stmt.commit();
 
         // Clear down lists for the next folder.
@@ -393,4 +476,12 @@ public class RebuildMusicLibraryTask extends AbstractTask {
     public void setRebuildMetaData() {
         this.rebuildMetaData = true;
     }
+
+    /**
+     * Rebuilds into a new index, swapped in when complete, rather than
+     * updating the live index.
+     */
+    public void setShadowRebuild() {
+        this.shadowRebuild = true;
+    }
 }
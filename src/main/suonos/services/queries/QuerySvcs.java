@@ -18,6 +18,8 @@ package suonos.services.queries;
 
 import java.io.IOException;
 
+import org.apache.lucene.search.Query;
+
 import com.github.am0e.commons.json.JsonObjectReader;
 import com.github.am0e.commons.utils.StringUtil;
 import com.github.am0e.webc.WebException;
@@ -29,6 +31,9 @@ import suonos.app.SuonosLib;
 import suonos.app.utils.TagUtils;
 import suonos.controllers.resp.DataResp;
 import suonos.controllers.resp.JsonResp;
+import suonos.lucene.ModelType;
+import suonos.lucene.ProjectedResults;
+import suonos.lucene.QueryHelper;
 import suonos.lucene.QueryResults;
 import suonos.lucene.fields.IndexedFieldCounts;
 import suonos.lucene.fields.IndexedFieldCountsBuilder;
@@ -54,8 +59,21 @@ public class QuerySvcs {
 
     public JsonResponse jsonQuery(Class<? extends StoreObject> type) throws IOException {
 
+        // Fields are projected only if asked for explicitly. The fields must
+        // be stored, indexes built before they were stored need a rebuild.
+        //
+        String fields = ctx.param("fields", null);
+        String view = ctx.param("view", null);
+
+        // Relations, eg rel=tracks, are loaded from the objects.
+        //
+        if (ctx.param("rel", null) != null) {
+            fields = null;
+            view = null;
+        }
+
         return jsonQuery(type, ctx.param("q", null), ctx.param("s", null), ctx.param("n", null),
-                ctx.params().getInteger("max", -1));
+                ctx.params().getInteger("max", -1), fields, view);
     }
 
     public JsonResponse jsonQuery(Class<? extends StoreObject> type, String query) throws IOException {
@@ -66,10 +84,40 @@ public class QuerySvcs {
     public JsonResponse jsonQuery(Class<? extends StoreObject> type, String q, String s, String nextToken, int max)
             throws IOException {
 
+        return jsonQuery(type, q, s, nextToken, max, null, null);
+    }
+
+    /**
+     * Queries the objects. If fields or a view are given, only those fields
+     * are returned, read from the index without loading the objects.
+     */
+    public JsonResponse jsonQuery(Class<? extends StoreObject> type, String q, String s, String nextToken, int max,
+            String fields, String view) throws IOException {
+
         s = s == null ? null : s.toLowerCase();
 
         // Build the query.
         //
+        q = normalizeQuery(q);
+
+        QueryHelper qh = lib.stmt().queryHelper().setType(type).setQuery(q).setSort(s).setNextToken(nextToken)
+                .setMax(max).setFields(fields).setView(view);
+
+        // Query the fields.
+        //
+        if (qh.isProjection()) {
+            ProjectedResults rows = qh.project();
+            return resultsAsJson(rows, rows.lastScoreToken());
+        }
+
+        // Query the objects.
+        //
+        QueryResults<StoreObject> objects = qh.query();
+
+        return resultsAsJson(objects);
+    }
+
+    private String normalizeQuery(String q) {
         if (q != null) {
             q = q.toLowerCase();
 
@@ -88,19 +136,16 @@ public class QuerySvcs {
                 }
             }
         }
-
-        // Query the objects.
-        //
-        QueryResults<StoreObject> objects = lib.stmt().queryHelper().setType(type).setQuery(q).setSort(s)
-                .setNextToken(nextToken).setMax(max).query();
-
-        return resultsAsJson(objects);
+        return q;
     }
 
     public JsonResponse resultsAsJson(QueryResults<StoreObject> objects) throws IOException {
+        return resultsAsJson(objects, objects.lastScoreToken());
+    }
+
+    private JsonResponse resultsAsJson(Object results, String lastScoreToken) throws IOException {
         UrlBuilder urlb = ctx.request().urlBuilder();
         urlb.setQueryParams();
-        String lastScoreToken = objects.lastScoreToken();
         String nextLink = null;
 
         if (lastScoreToken != null) {
@@ -110,7 +155,7 @@ public class QuerySvcs {
 
         // Return back as a json object.
         //
-        return jsonData(objects).setNextLink(nextLink);
+        return jsonData(results).setNextLink(nextLink);
     }
 
     public IndexedFieldCounts queryFacets() throws IOException {
@@ -130,10 +175,45 @@ public class QuerySvcs {
         }
 
         IndexedFieldCountsBuilder bldr = lib.stmt().indexedFieldCountsBuilder();
-        for (int i = 0; i != ids.length; i++) {
-            bldr.addField(ids[i], filter);
+
+        // Optional page of terms, sorted by "term" (default) or "count".
+        //
+        String sort = ctx.params().getString("sort", "term");
+
+        if (!"term".equals(sort) && !"count".equals(sort)) {
+            throw WebException.badRequest();
         }
 
+        bldr.setSortByCount("count".equals(sort));
+        bldr.setPage(ctx.params().getInteger("offset", 0), ctx.params().getInteger("limit", -1));
+
+        // Optional query and type: count only the matching documents. Eg
+        // the genres of the albums found by a search.
+        //
+        String q = normalizeQuery(ctx.param("q", null));
+        String typeName = ctx.param("type", null);
+        Class<?> type = null;
+
+        if (typeName != null) {
+            ModelType modelType = lib.luceneIndex().getModelType(typeName);
+
+            if (modelType == null) {
+                throw WebException.badRequest();
+            }
+
+            type = modelType.getModelClass();
+        }
+
+        Query query = lib.stmt().queryHelper().setType(type).setQuery(q).buildQuery();
+
+        if (query != null) {
+            bldr.setQuery(query, ctx.params().getInteger("max", 10));
+        }
+
+        // The fields are counted concurrently.
+        //
+        bldr.addFields(ids, filter);
+
         return bldr.build();
     }
 
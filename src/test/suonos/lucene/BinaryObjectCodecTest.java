@@ -0,0 +1,366 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import suonos.models.annotations.BinaryField;
+import suonos.models.media.MediaTagValue;
+import suonos.models.media.MediaTagValues;
+import suonos.models.media.MediaTags;
+
+public class BinaryObjectCodecTest {
+
+    enum Mode {
+        STEREO, MONO
+    }
+
+    enum ModeV2 {
+        STEREO, SURROUND
+    }
+
+    static class Part {
+        String name;
+        int number;
+    }
+
+    static class Sample {
+        String title;
+        int year;
+        Integer discs;
+        long size;
+        boolean live;
+        double rating;
+        float gain;
+        Date added;
+        Mode mode;
+        List<String> names;
+        List<Integer> numbers;
+        List<Part> parts;
+        Part main;
+        transient String notStored;
+    }
+
+    /**
+     * Sample as written by a later version of the class: a field added, a
+     * field removed (live), a field with a different type (year) and an enum
+     * with a constant that no longer exists in Sample.
+     */
+    static class SampleV2 {
+        String title;
+        String year;
+        Integer discs;
+        long size;
+        double rating;
+        float gain;
+        Date added;
+        ModeV2 mode;
+        List<String> names;
+        List<Integer> numbers;
+        List<Part> parts;
+        Part main;
+        String extra;
+        List<Part> extraParts;
+    }
+
+    static class Titled {
+        String title;
+        String Aa;
+    }
+
+    /**
+     * Titled with a field that cannot be encoded.
+     */
+    static class TitledMap {
+        String title;
+        Map<String, String> extra;
+    }
+
+    static class Outer {
+        Part main;
+        TitledMap other;
+    }
+
+    static class Node {
+        String name;
+        Node next;
+        List<Node> children;
+    }
+
+    /**
+     * "Aa" and "BB" have the same hash code.
+     */
+    static class Clash {
+        String Aa;
+        String BB;
+    }
+
+    static class ClashNumbered {
+        String Aa;
+
+        @BinaryField(12345)
+        String BB;
+    }
+
+    static class Tagged {
+        String title;
+        MediaTagValues tags;
+    }
+
+    private static Part part(String name, int number) {
+        Part p = new Part();
+        p.name = name;
+        p.number = number;
+        return p;
+    }
+
+    private static byte[] encode(Object obj) {
+        BinaryObjectCodec codec = new BinaryObjectCodec();
+        codec.encode(obj, ObjectSchema.forClass(obj.getClass()));
+        return Arrays.copyOf(codec.buffer(), codec.length());
+    }
+
+    private static Object decode(byte[] bytes, Class<?> type) {
+        return new BinaryObjectCodec().decode(bytes, 0, bytes.length, ObjectSchema.forClass(type));
+    }
+
+    @Test
+    public void roundTrip() {
+        Sample s = new Sample();
+        s.title = "Goldberg Variations é";
+        s.year = -1981;
+        s.discs = 2;
+        s.size = Long.MAX_VALUE;
+        s.live = true;
+        s.rating = 4.5;
+        s.gain = -6.25f;
+        s.added = new Date(1445000000000L);
+        s.mode = Mode.MONO;
+        s.names = Arrays.asList("Glenn Gould", "", "Bach");
+        s.numbers = Arrays.asList(0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE);
+        s.parts = Arrays.asList(part("Aria", 1), part("Variatio 1", 2));
+        s.main = part("Aria", 1);
+        s.notStored = "x";
+
+        byte[] bytes = encode(s);
+        assertTrue(BinaryObjectCodec.isBinary(bytes, 0, bytes.length));
+
+        Sample d = (Sample) decode(bytes, Sample.class);
+
+        assertEquals(s.title, d.title);
+        assertEquals(s.year, d.year);
+        assertEquals(s.discs, d.discs);
+        assertEquals(s.size, d.size);
+        assertEquals(s.live, d.live);
+        assertEquals(s.rating, d.rating, 0);
+        assertEquals(s.gain, d.gain, 0);
+        assertEquals(s.added, d.added);
+        assertEquals(s.mode, d.mode);
+        assertEquals(s.names, d.names);
+        assertEquals(s.numbers, d.numbers);
+        assertEquals(2, d.parts.size());
+        assertEquals("Variatio 1", d.parts.get(1).name);
+        assertEquals(2, d.parts.get(1).number);
+        assertEquals("Aria", d.main.name);
+        assertNull(d.notStored);
+    }
+
+    @Test
+    public void nullFieldsAreNotWritten() {
+        Sample s = new Sample();
+        byte[] bytes = encode(s);
+
+        Sample d = (Sample) decode(bytes, Sample.class);
+        assertNull(d.title);
+        assertNull(d.discs);
+        assertNull(d.names);
+        assertNull(d.main);
+        assertEquals(0, d.year);
+    }
+
+    @Test
+    public void encodingIsStable() {
+        Sample s = new Sample();
+        s.title = "a";
+        s.year = 1;
+
+        assertArrayEquals(encode(s), encode(s));
+    }
+
+    @Test
+    public void skipsUnknownFieldsAndChangedTypes() {
+        SampleV2 s = new SampleV2();
+        s.title = "title";
+        s.year = "1981";
+        s.discs = 3;
+        s.size = 42;
+        s.mode = ModeV2.SURROUND;
+        s.names = Arrays.asList("a", "b");
+        s.main = part("main", 7);
+        s.extra = "extra";
+        s.extraParts = Arrays.asList(part("x", 1));
+
+        Sample d = (Sample) decode(encode(s), Sample.class);
+
+        // Fields known to both versions are read.
+        //
+        assertEquals("title", d.title);
+        assertEquals(Integer.valueOf(3), d.discs);
+        assertEquals(42, d.size);
+        assertEquals(Arrays.asList("a", "b"), d.names);
+        assertEquals(7, d.main.number);
+
+        // The field with a different wire type keeps its default value, and
+        // the enum constant that does not exist is read as null.
+        //
+        assertEquals(0, d.year);
+        assertNull(d.mode);
+        assertFalse(d.live);
+    }
+
+    @Test
+    public void readsFieldsAddedLater() {
+        Sample s = new Sample();
+        s.title = "title";
+        s.live = true;
+
+        SampleV2 d = (SampleV2) decode(encode(s), SampleV2.class);
+
+        assertEquals("title", d.title);
+        assertNull(d.extra);
+        assertNull(d.year);
+    }
+
+    @Test
+    public void jsonIsNotBinary() {
+        byte[] json = "{\"title\":\"a\"}".getBytes(StandardCharsets.UTF_8);
+
+        assertFalse(BinaryObjectCodec.isBinary(json, 0, json.length));
+        assertFalse(BinaryObjectCodec.isBinary(json, 0, 0));
+    }
+
+    @Test
+    public void schemaOfUnsupportedClassIsNull() {
+        assertNull(ObjectSchema.forClass(Object[].class));
+        assertNotNull(ObjectSchema.forClass(Sample.class));
+        assertTrue(ObjectSchema.forClass(Sample.class).isEncodable());
+    }
+
+    @Test
+    public void decodesClassWithUnsupportedField() {
+        ObjectSchema schema = ObjectSchema.forClass(TitledMap.class);
+
+        // Encoded as json, the documents already encoded are read.
+        //
+        assertNotNull(schema);
+        assertFalse(schema.isEncodable());
+        assertFalse(ObjectSchema.forClass(Outer.class).isEncodable());
+
+        Titled s = new Titled();
+        s.title = "title";
+
+        TitledMap d = (TitledMap) decode(encode(s), TitledMap.class);
+        assertEquals("title", d.title);
+        assertNull(d.extra);
+    }
+
+    @Test
+    public void selfReferentialClass() {
+        Node child = new Node();
+        child.name = "child";
+
+        Node s = new Node();
+        s.name = "a";
+        s.next = new Node();
+        s.next.name = "b";
+        s.children = Arrays.asList(child);
+
+        assertTrue(ObjectSchema.forClass(Node.class).isEncodable());
+
+        Node d = (Node) decode(encode(s), Node.class);
+
+        assertEquals("a", d.name);
+        assertEquals("b", d.next.name);
+        assertNull(d.next.next);
+        assertEquals("child", d.children.get(0).name);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void duplicateNumberFails() {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        ObjectSchema.forClass(Clash.class);
+    }
+
+    @Test
+    public void numberedFieldKeepsTheStoredField() {
+        Titled s = new Titled();
+        s.Aa = "stored";
+
+        ClashNumbered d = (ClashNumbered) decode(encode(s), ClashNumbered.class);
+        assertEquals("stored", d.Aa);
+        assertNull(d.BB);
+
+        ClashNumbered n = new ClashNumbered();
+        n.Aa = "a";
+        n.BB = "b";
+
+        d = (ClashNumbered) decode(encode(n), ClashNumbered.class);
+        assertEquals("a", d.Aa);
+        assertEquals("b", d.BB);
+    }
+
+    @Test
+    public void roundTripTags() throws Exception {
+        MediaTags tags = new MediaTags(new LuceneIndex());
+
+        MediaTagValue unknown = new MediaTagValue();
+        unknown.setTagDefId(99999);
+        unknown.setValue("unknown");
+
+        Tagged s = new Tagged();
+        s.title = "title";
+        s.tags = new MediaTagValues();
+        s.tags.getValues().add(tags.createTagValue(MediaTags.ARTISTS, "Glenn Gould"));
+        s.tags.getValues().add(tags.createTagValue(MediaTags.ARTISTS, "Bach é"));
+        s.tags.getValues().add(tags.createTagValue(MediaTags.GENRES, "Classical"));
+        s.tags.getValues().add(unknown);
+
+        byte[] bytes = encode(s);
+        Tagged d = (Tagged) new BinaryObjectCodec(tags).decode(bytes, 0, bytes.length,
+                ObjectSchema.forClass(Tagged.class));
+
+        // Values of tags that no longer exist are dropped.
+        //
+        assertEquals("title", d.title);
+        assertEquals(s.tags.getValues().subList(0, 3), d.tags.getValues());
+        assertTrue(d.tags.getValues().get(0).getMediaTagDef() == MediaTags.ARTISTS);
+        assertTrue(d.tags.getValues().get(2).getMediaTagDef() == MediaTags.GENRES);
+    }
+}
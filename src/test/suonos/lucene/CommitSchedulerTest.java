@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+public class CommitSchedulerTest {
+
+    // The scheduler is not started, the policy is checked directly.
+    //
+    private final CommitScheduler scheduler = new CommitScheduler(null, 1000, 100, 200);
+
+    @Test
+    public void nothingPending() {
+        assertFalse(scheduler.shouldCommit(System.currentTimeMillis() + 60000));
+    }
+
+    @Test
+    public void maxPendingDocs() {
+        long now = System.currentTimeMillis();
+
+        scheduler.writesPending(99);
+        assertFalse(scheduler.shouldCommit(now));
+
+        scheduler.writesPending(1);
+        assertTrue(scheduler.shouldCommit(now));
+    }
+
+    @Test
+    public void idleFlush() {
+        scheduler.writesPending(1);
+        long last = scheduler.getLastWriteTime();
+
+        assertFalse(scheduler.shouldCommit(last + 199));
+        assertTrue(scheduler.shouldCommit(last + 200));
+    }
+
+    @Test
+    public void maxLatency() {
+        CommitScheduler busy = new CommitScheduler(null, 1000, 100, 5000);
+
+        busy.writesPending(1);
+        long first = busy.getLastWriteTime();
+
+        // Not idle, but the first write is maxLatencyMs old.
+        //
+        assertFalse(busy.shouldCommit(first + 999));
+        assertTrue(busy.shouldCommit(first + 1000));
+    }
+
+    @Test
+    public void writesShareTheNextCommit() {
+        CompletableFuture<Void> f1 = scheduler.writesPending(1);
+        CompletableFuture<Void> f2 = scheduler.writesPending(1);
+
+        assertSame(f1, f2);
+        assertSame(f1, scheduler.nextCommit());
+    }
+
+    @Test
+    public void nextCommitWithoutWrites() {
+        CompletableFuture<Void> f = scheduler.nextCommit();
+
+        // Nothing to commit, and no write is recorded.
+        //
+        assertTrue(f.isDone());
+        assertEquals(0, scheduler.getLastWriteTime());
+        assertFalse(scheduler.shouldCommit(System.currentTimeMillis() + 60000));
+    }
+}
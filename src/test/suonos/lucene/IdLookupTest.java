@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IdLookupTest {
+
+    private RAMDirectory dir;
+    private DirectoryReader reader;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = new RAMDirectory();
+
+        try (IndexWriter iw = new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+            // Three segments. Album a2 is deleted, track t4 is in the last
+            // segment.
+            //
+            add(iw, "a1", null);
+            add(iw, "t1", "a1");
+            add(iw, "t2", "a1");
+            iw.commit();
+
+            add(iw, "a2", null);
+            add(iw, "a3", null);
+            add(iw, "t3", "a3");
+            iw.commit();
+
+            add(iw, "t4", "a1");
+            iw.deleteDocuments(new Term("id", "a2"));
+        }
+
+        reader = DirectoryReader.open(dir);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        reader.close();
+        dir.close();
+    }
+
+    private static void add(IndexWriter iw, String id, String albumId) throws IOException {
+        Document doc = new Document();
+        doc.add(new StringField("id", id, Store.YES));
+
+        if (albumId != null) {
+            doc.add(new StringField("albumId", albumId, Store.YES));
+        }
+
+        iw.addDocument(doc);
+    }
+
+    private String[] ids(TopDocs docs) throws IOException {
+        String[] res = new String[docs.scoreDocs.length];
+
+        for (int i = 0; i != res.length; i++) {
+            res[i] = id(docs.scoreDocs[i].doc);
+        }
+
+        return res;
+    }
+
+    private String id(int doc) throws IOException {
+        return reader.document(doc).get("id");
+    }
+
+    @Test
+    public void keepsTheOrderOfTheIds() throws IOException {
+        TopDocs docs = IdLookup.lookup(reader, "id", Arrays.asList("t4", "a1", "t3", "t1"));
+
+        assertEquals(4, docs.totalHits);
+        assertArrayEquals(new String[] { "t4", "a1", "t3", "t1" }, ids(docs));
+    }
+
+    @Test
+    public void skipsMissingAndDeletedIds() throws IOException {
+        TopDocs docs = IdLookup.lookup(reader, "id", Arrays.asList("x", "a2", "a3", "zz"));
+
+        assertEquals(1, docs.totalHits);
+        assertArrayEquals(new String[] { "a3" }, ids(docs));
+    }
+
+    @Test
+    public void duplicateIds() throws IOException {
+        TopDocs docs = IdLookup.lookup(reader, "id", Arrays.asList("t2", "a1", "t2", "a1"));
+
+        assertArrayEquals(new String[] { "t2", "a1", "t2", "a1" }, ids(docs));
+
+        ScoreDoc[] sd = docs.scoreDocs;
+        assertEquals(sd[0].doc, sd[2].doc);
+        assertEquals(sd[1].doc, sd[3].doc);
+    }
+
+    @Test
+    public void noIds() throws IOException {
+        assertEquals(0, IdLookup.lookup(reader, "id", Collections.emptyList()).totalHits);
+    }
+
+    @Test
+    public void lookupAllAcrossSegments() throws IOException {
+        int[][] docs = IdLookup.lookupAll(reader, "albumId", Arrays.asList("a3", "a2", "a1", "a3"));
+
+        assertEquals(4, docs.length);
+        assertEquals(1, docs[0].length);
+        assertEquals("t3", id(docs[0][0]));
+        assertEquals(0, docs[1].length);
+
+        String[] tracks = new String[docs[2].length];
+        for (int i = 0; i != tracks.length; i++) {
+            tracks[i] = id(docs[2][i]);
+        }
+        assertArrayEquals(new String[] { "t1", "t2", "t4" }, tracks);
+
+        assertArrayEquals(docs[0], docs[3]);
+    }
+}
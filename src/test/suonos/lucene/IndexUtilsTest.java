@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import suonos.services.ServiceException;
+
+public class IndexUtilsTest {
+
+    private static String encode(ByteBuffer b) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(b.array(), b.position()));
+    }
+
+    private static void assertInvalid(String token, int numFields) {
+        try {
+            IndexUtils.parseLastScoreToken(token, numFields);
+            fail("Token accepted");
+
+        } catch (ServiceException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void scoreDocRoundTrip() {
+        String token = IndexUtils.buildLastScoreToken(new ScoreDoc(42, 1.5f), 7);
+        ScoreDoc doc = IndexUtils.parseLastScoreToken(token, 0);
+
+        assertFalse(doc instanceof FieldDoc);
+        assertEquals(42, doc.doc);
+        assertEquals(1.5f, doc.score, 0);
+        assertEquals(7, IndexUtils.parseTokenGeneration(token));
+    }
+
+    @Test
+    public void fieldDocRoundTrip() {
+        Object[] fields = new Object[] { new BytesRef("abcd"), null, 3, Long.MIN_VALUE, 2.5f, -0.25, new BytesRef() };
+        String token = IndexUtils.buildLastScoreToken(new FieldDoc(9, Float.NaN, fields), Long.MAX_VALUE);
+
+        ScoreDoc doc = IndexUtils.parseLastScoreToken(token, fields.length);
+
+        assertTrue(doc instanceof FieldDoc);
+        assertEquals(9, doc.doc);
+        assertArrayEquals(fields, ((FieldDoc) doc).fields);
+        assertEquals(Long.MAX_VALUE, IndexUtils.parseTokenGeneration(token));
+    }
+
+    @Test
+    public void tokenIsUrlSafe() {
+        byte[] bytes = new byte[64];
+        Arrays.fill(bytes, (byte) 0xFF);
+
+        String token = IndexUtils.buildLastScoreToken(new FieldDoc(-1, 0, new Object[] { new BytesRef(bytes) }), -1);
+
+        assertTrue(token.matches("[A-Za-z0-9_-]+"));
+    }
+
+    @Test
+    public void legacyToken() {
+        ByteBuffer b = ByteBuffer.allocate(8);
+        b.putInt(5).putFloat(0.5f);
+        String token = encode(b);
+
+        ScoreDoc doc = IndexUtils.parseLastScoreToken(token, 0);
+
+        assertEquals(5, doc.doc);
+        assertEquals(0.5f, doc.score, 0);
+        assertEquals(-1, IndexUtils.parseTokenGeneration(token));
+    }
+
+    @Test
+    public void fieldCountMustMatchTheSort() {
+        String token = IndexUtils.buildLastScoreToken(new FieldDoc(1, 0, new Object[] { 1, 2L }), 1);
+
+        assertInvalid(token, 0);
+        assertInvalid(token, 1);
+        assertInvalid(token, 3);
+    }
+
+    @Test
+    public void negativeFieldCount() {
+        ByteBuffer b = ByteBuffer.allocate(32);
+        b.put((byte) 2).putLong(1).putInt(1).putFloat(0).put((byte) -1);
+
+        assertInvalid(encode(b), 2);
+    }
+
+    @Test
+    public void truncatedTokens() {
+        String token = IndexUtils.buildLastScoreToken(new FieldDoc(1, 0, new Object[] { new BytesRef("abc"), 2L }), 1);
+        byte[] bytes = Base64.getUrlDecoder().decode(token);
+
+        for (int len = 0; len != bytes.length; len++) {
+            if (len == 8) {
+                // Legacy token length.
+                //
+                continue;
+            }
+
+            assertInvalid(Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(bytes, len)), 2);
+        }
+    }
+
+    @Test
+    public void trailingBytes() {
+        String token = IndexUtils.buildLastScoreToken(new ScoreDoc(1, 0), 1);
+        byte[] bytes = Base64.getUrlDecoder().decode(token);
+
+        assertInvalid(Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(bytes, bytes.length + 1)),
+                0);
+    }
+
+    @Test
+    public void invalidValues() {
+        ByteBuffer b = ByteBuffer.allocate(64);
+        b.put((byte) 2).putLong(1).putInt(1).putFloat(0).put((byte) 1);
+
+        // Unknown tag.
+        //
+        ByteBuffer unknown = ByteBuffer.allocate(64);
+        unknown.put(Arrays.copyOf(b.array(), b.position())).put((byte) 99).putLong(0);
+        assertInvalid(encode(unknown), 1);
+
+        // Bytes longer than the token.
+        //
+        ByteBuffer longBytes = ByteBuffer.allocate(64);
+        longBytes.put(Arrays.copyOf(b.array(), b.position())).put((byte) 1).putInt(1000);
+        assertInvalid(encode(longBytes), 1);
+
+        // Negative length.
+        //
+        ByteBuffer negative = ByteBuffer.allocate(64);
+        negative.put(Arrays.copyOf(b.array(), b.position())).put((byte) 1).putInt(-1);
+        assertInvalid(encode(negative), 1);
+    }
+
+    @Test
+    public void notBase64() {
+        assertInvalid("not a token!", 0);
+        assertInvalid("", 0);
+    }
+
+    @Test
+    public void wrongVersion() {
+        ByteBuffer b = ByteBuffer.allocate(32);
+        b.put((byte) 3).putLong(1).putInt(1).putFloat(0).put((byte) 0);
+
+        assertInvalid(encode(b), 0);
+    }
+}
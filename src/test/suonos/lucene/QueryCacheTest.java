@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package suonos.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.junit.Test;
+
+public class QueryCacheTest {
+
+    @Test
+    public void getReturnsCopies() {
+        QueryCache cache = new QueryCache(10);
+        Query parsed = new TermQuery(new Term("title", "abba"));
+
+        assertNull(cache.get("abba", "title"));
+        cache.put("abba", "title", parsed);
+
+        // Neither the parsed query nor a returned copy change the cached
+        // query.
+        //
+        parsed.setBoost(2.0f);
+        Query q = cache.get("abba", "title");
+        assertEquals(1.0f, q.getBoost(), 0.0f);
+        assertNotSame(parsed, q);
+
+        q.setBoost(3.0f);
+        assertEquals(1.0f, cache.get("abba", "title").getBoost(), 0.0f);
+        assertEquals(new TermQuery(new Term("title", "abba")), cache.get("abba", "title"));
+
+        assertEquals(3, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void disabled() {
+        QueryCache cache = new QueryCache(0);
+        cache.put("abba", "title", new TermQuery(new Term("title", "abba")));
+
+        assertNull(cache.get("abba", "title"));
+        assertEquals(0, cache.size());
+    }
+}
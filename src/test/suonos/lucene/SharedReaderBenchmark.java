@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Contention on the shared reader: 32 threads search while one thread writes,
+ * so that the reader is reopened continually. The search latency should not
+ * include the reopen (a flush of the writer) made by another thread.
+ *
+ * The "contended" group acquires the reader without a lock. The "locked"
+ * group is the baseline: the reader is acquired and released under a monitor,
+ * and a stale reader is reopened by the searching thread while holding it, as
+ * before the reader was shared lock free.
+ *
+ * Run from the project directory, the models are read from conf/models.xml:
+ * 
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=suonos.lucene.SharedReaderBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SharedReaderBenchmark {
+
+    private Path root;
+    private LuceneIndex index;
+    private IndexPartition partition;
+    private final AtomicLong ids = new AtomicLong();
+
+    /**
+     * Monitor of the baseline.
+     */
+    private final Object lock = new Object();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        root = Files.createTempDirectory("suonos-bench");
+
+        index = new LuceneIndex();
+        index.setIndexRoot(root.toString());
+        index.start(null);
+
+        partition = index.partitions()[0];
+
+        for (int i = 0; i != 10000; i++) {
+            addDocument();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        index.stop(null);
+
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path it : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(it);
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(32)
+    public int search() throws IOException {
+        SharedLuceneReader reader = index.openSharedReader();
+
+        try {
+            return reader.indexSearcher().search(new MatchAllDocsQuery(), 10).totalHits;
+
+        } finally {
+            index.releaseSharedReader(reader);
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void write() throws IOException {
+        addDocument();
+    }
+
+    @Benchmark
+    @Group("locked")
+    @GroupThreads(32)
+    public int lockedSearch() throws IOException {
+        SharedLuceneReader reader;
+
+        synchronized (lock) {
+            reader = index.openSharedReader(true);
+        }
+
+        try {
+            return reader.indexSearcher().search(new MatchAllDocsQuery(), 10).totalHits;
+
+        } finally {
+            synchronized (lock) {
+                index.releaseSharedReader(reader);
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("locked")
+    @GroupThreads(1)
+    public void lockedWrite() throws IOException {
+        addDocument();
+    }
+
+    private void addDocument() throws IOException {
+        Document doc = new Document();
+        doc.add(new StringField("id", Long.toString(ids.incrementAndGet()), Store.YES));
+
+        SharedLuceneWriter writer = partition.openWriter();
+
+        try {
+            writer.addDocument(doc);
+
+        } finally {
+            writer.close();
+        }
+
+        partition.writesPending(1);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SharedReaderBenchmark.class.getSimpleName()).build()).run();
+    }
+}
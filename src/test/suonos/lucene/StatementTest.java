@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.Closeable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.am0e.commons.providers.Context;
+import com.github.am0e.commons.providers.ObjectProvider;
+
+import suonos.models.music.MusicAlbum;
+
+/**
+ * Saves objects through a statement of an index in a temporary directory.
+ * The models are read from conf/models.xml.
+ */
+public class StatementTest {
+
+    private Path root;
+    private LuceneIndex index;
+    private Closeable ctx;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("suonos-test");
+
+        index = new LuceneIndex();
+        index.setIndexRoot(root.toString());
+        index.start(null);
+
+        // The statement context gets the index from the context.
+        //
+        ctx = Context.enterContext(new ObjectProvider() {
+            @Override
+            public <T> T getInstanceOf(Class<T> type) {
+                return type.cast(index);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ctx.close();
+        index.stop(null);
+
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path it : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(it);
+            }
+        }
+    }
+
+    @Test
+    public void testSaveObjectsNewId() throws Exception {
+        MusicAlbum created = album("Created", null);
+        MusicAlbum existing = album("Existing", "album-1");
+
+        try (Statement stmt = index.getStatement()) {
+            stmt.saveObjects(Arrays.asList(created, existing));
+            stmt.commit();
+        }
+
+        assertNotNull(created.getId());
+        assertNotEquals(existing.getId(), created.getId());
+        assertEquals("album-1", existing.getId());
+
+        try (Statement stmt = index.getStatement()) {
+            assertEquals("Created", stmt.<MusicAlbum> getObject(created.getId()).getTitle());
+            assertEquals("Existing", stmt.<MusicAlbum> getObject("album-1").getTitle());
+        }
+    }
+
+    @Test
+    public void testSaveObjectsReplaces() throws Exception {
+        try (Statement stmt = index.getStatement()) {
+            stmt.saveObjects(Arrays.asList(album("First", "album-1")));
+            stmt.commit();
+        }
+
+        try (Statement stmt = index.getStatement()) {
+            stmt.saveObjects(Arrays.asList(album("Second", "album-1")));
+            stmt.commit();
+        }
+
+        try (Statement stmt = index.getStatement()) {
+            assertEquals(1, stmt.queryObject("album-1").totalHits());
+            assertEquals("Second", stmt.<MusicAlbum> getObject("album-1").getTitle());
+        }
+    }
+
+    private static MusicAlbum album(String title, String id) {
+        MusicAlbum album = new MusicAlbum();
+        album.setId(id);
+        album.setTitle(title);
+        return album;
+    }
+}
@@ -0,0 +1,310 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package suonos.lucene.fields;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.am0e.commons.AntLib;
+
+import suonos.lucene.IndexAnalyser;
+import suonos.lucene.IndexModels;
+
+public class IndexedFieldCountsBuilderTest {
+
+    private static final String ARTISTS = "album_artists";
+    private static final String GENRES = "album_genres";
+
+    private RAMDirectory dir;
+    private DirectoryReader reader;
+    private IndexModels models;
+    private FacetCountsCache countsCache;
+
+    /**
+     * The query the counts are restricted to, or null for all the documents.
+     */
+    private Query query;
+
+    @Before
+    public void setUp() throws IOException {
+        models = new IndexModels();
+        models.addAnalyzer(new IndexAnalyser("keyword", new KeywordAnalyzer()));
+        models.addField(field(ARTISTS, true));
+        models.addField(field(GENRES, false));
+        countsCache = new FacetCountsCache();
+
+        dir = new RAMDirectory();
+
+        try (IndexWriter iw = new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+            // Three segments. The artists are doc values, the genres are
+            // terms, and both have variants that only differ by case or
+            // punctuation, split across the segments.
+            //
+            add(iw, "ABBA", "Pop");
+            add(iw, "ABBA", "pop");
+            add(iw, "Bach", "Baroque");
+            add(iw, "The Beatles", "Rock");
+            iw.commit();
+
+            add(iw, "Abba", "POP");
+            add(iw, "Bach", "baroque");
+            add(iw, "bach", "Classical");
+            add(iw, "the beatles", "rock");
+            iw.commit();
+
+            add(iw, "abba", "Pop");
+            add(iw, "Bach", "Classical");
+            add(iw, "bach", "Rock");
+            add(iw, "Coldplay", "Rock");
+            add(iw, "Coldplay", "Pop");
+            add(iw, "Adele", "Pop");
+            add(iw, "the-beatles", "Jazz");
+            iw.commit();
+        }
+
+        reader = DirectoryReader.open(dir);
+        assertEquals(3, reader.leaves().size());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        reader.close();
+        dir.close();
+    }
+
+    @Test
+    public void testDocValuesByTerm() throws IOException {
+        List<String> all = pageAll(ARTISTS, null, false, -1);
+
+        assertEquals(Arrays.asList("ABBA:4", "Adele:1", "Bach:5", "Coldplay:2", "The Beatles:3"), all);
+
+        for (int limit = 1; limit <= 6; limit++) {
+            assertEquals("limit " + limit, all, pageAll(ARTISTS, null, false, limit));
+        }
+    }
+
+    @Test
+    public void testDocValuesByCount() throws IOException {
+        List<String> all = pageAll(ARTISTS, null, true, -1);
+
+        assertEquals(Arrays.asList("Bach:5", "ABBA:4", "The Beatles:3", "Coldplay:2", "Adele:1"), all);
+
+        for (int limit = 1; limit <= 6; limit++) {
+            assertEquals("limit " + limit, all, pageAll(ARTISTS, null, true, limit));
+        }
+    }
+
+    @Test
+    public void testDocValuesFilter() throws IOException {
+        assertEquals(Arrays.asList("ABBA:4", "Adele:1"), pageAll(ARTISTS, "a", false, 1));
+        assertEquals(Arrays.asList("The Beatles:3"), pageAll(ARTISTS, "THE", true, 1));
+    }
+
+    @Test
+    public void testTermGroups() throws IOException {
+        FacetCountsCache.TermGroups groups = countsCache.getTermGroups(reader, models.indexedField(ARTISTS));
+
+        // 10 terms, 5 keys. The groups are in the order of their first term.
+        //
+        assertEquals(10, groups.getOrdinalMap().getValueCount());
+        assertEquals(5, groups.size());
+        assertEquals(0, groups.firstOrd(0));
+        assertEquals(0, groups.group(1));
+        assertSame(groups, countsCache.getTermGroups(reader, models.indexedField(ARTISTS)));
+    }
+
+    @Test
+    public void testTermsByTerm() throws IOException {
+        List<String> all = pageAll(GENRES, null, false, -1);
+
+        assertEquals(Arrays.asList("Baroque:2", "Classical:2", "Jazz:1", "POP:6", "Rock:4"), all);
+
+        for (int limit = 1; limit <= 6; limit++) {
+            assertEquals("limit " + limit, all, pageAll(GENRES, null, false, limit));
+        }
+    }
+
+    @Test
+    public void testTermsByCount() throws IOException {
+        List<String> all = pageAll(GENRES, null, true, -1);
+
+        assertEquals(Arrays.asList("POP:6", "Rock:4", "Baroque:2", "Classical:2", "Jazz:1"), all);
+
+        for (int limit = 1; limit <= 6; limit++) {
+            assertEquals("limit " + limit, all, pageAll(GENRES, null, true, limit));
+        }
+    }
+
+    @Test
+    public void testTiesByCount() throws IOException {
+        // Baroque and Classical have the same count, and Adele and Coldplay
+        // have the same count among the "Pop" albums. Ties are in term order
+        // on every page.
+        //
+        checkPages(GENRES, Arrays.asList("POP:6", "Rock:4", "Baroque:2", "Classical:2", "Jazz:1"));
+
+        query = new TermQuery(new Term(GENRES, "Pop"));
+        checkPages(ARTISTS, Arrays.asList("ABBA:2", "Adele:1", "Coldplay:1"));
+    }
+
+    @Test
+    public void testPageOffsets() throws IOException {
+        IndexedFieldCounts counts = counts(ARTISTS, null, true, 2, 2);
+
+        assertEquals(5, counts.getTotalTerms(ARTISTS));
+        assertEquals(4, counts.getNextOffset(ARTISTS));
+        assertEquals(2, counts.getFieldTermCounts(ARTISTS).length);
+
+        counts = counts(ARTISTS, null, true, 4, 2);
+
+        assertEquals(5, counts.getTotalTerms(ARTISTS));
+        assertEquals(-1, counts.getNextOffset(ARTISTS));
+        assertEquals(1, counts.getFieldTermCounts(ARTISTS).length);
+
+        counts = counts(ARTISTS, null, true, 10, 2);
+
+        assertEquals(5, counts.getTotalTerms(ARTISTS));
+        assertEquals(-1, counts.getNextOffset(ARTISTS));
+        assertEquals(0, counts.getFieldTermCounts(ARTISTS).length);
+
+        // The same pages of a term field.
+        //
+        counts = counts(GENRES, null, false, 2, 2);
+
+        assertEquals(5, counts.getTotalTerms(GENRES));
+        assertEquals(4, counts.getNextOffset(GENRES));
+        assertEquals(Arrays.asList("Jazz:1", "POP:6"), page(GENRES, false, 2, 2));
+
+        counts = counts(GENRES, null, false, 4, 2);
+
+        assertEquals(-1, counts.getNextOffset(GENRES));
+        assertEquals(Arrays.asList("Rock:4"), page(GENRES, false, 4, 2));
+    }
+
+    /**
+     * Checks every page by count of a field, at every offset, is the slice of
+     * the terms in count order.
+     */
+    private void checkPages(String field, List<String> byCount) throws IOException {
+        for (int offset = 0; offset <= byCount.size(); offset++) {
+            for (int limit = 1; limit <= byCount.size(); limit++) {
+                int to = Math.min(offset + limit, byCount.size());
+                assertEquals("offset " + offset + " limit " + limit, byCount.subList(offset, to),
+                        page(field, true, offset, limit));
+            }
+        }
+    }
+
+    private List<String> page(String field, boolean sortByCount, int offset, int limit) throws IOException {
+        List<String> list = AntLib.newList();
+
+        for (IndexedFieldTermCount it : counts(field, null, sortByCount, offset, limit).getFieldTermCounts(field)) {
+            list.add(it.getTerm() + ":" + it.docFreq());
+        }
+
+        return list;
+    }
+
+    /**
+     * Gets every page of a field, following the next offset of each page.
+     * Checks each page is full but the last, and the total is the same for
+     * every page.
+     */
+    private List<String> pageAll(String field, String filter, boolean sortByCount, int limit) throws IOException {
+        List<String> list = AntLib.newList();
+        int total = -1;
+
+        for (int offset = 0; offset != -1;) {
+            IndexedFieldCounts counts = counts(field, filter, sortByCount, offset, limit);
+            IndexedFieldTermCount[] page = counts.getFieldTermCounts(field);
+            int next = counts.getNextOffset(field);
+
+            if (total == -1) {
+                total = counts.getTotalTerms(field);
+            }
+
+            assertEquals(total, counts.getTotalTerms(field));
+            assertTrue(next == -1 || next == offset + page.length);
+            assertTrue(next == -1 || page.length == limit);
+
+            for (IndexedFieldTermCount it : page) {
+                list.add(it.getTerm() + ":" + it.docFreq());
+            }
+
+            offset = next;
+        }
+
+        assertEquals(total, list.size());
+        return list;
+    }
+
+    private IndexedFieldCounts counts(String field, String filter, boolean sortByCount, int offset, int limit)
+            throws IOException {
+        IndexedFieldCountsBuilder builder = new IndexedFieldCountsBuilder(new IndexSearcher(reader), models,
+                countsCache, null);
+
+        if (query != null) {
+            builder.setQuery(query, 10);
+        }
+
+        return builder.setSortByCount(sortByCount).setPage(offset, limit).addField(field, filter).build();
+    }
+
+    private static IndexedField field(String name, boolean docValues) {
+        IndexedFieldType type = new IndexedFieldType();
+        type.setName("string");
+        type.setJavaType(String.class);
+
+        IndexedField fld = new IndexedField();
+        fld.setName(name);
+        fld.setType(type);
+        fld.setMultiValue(true);
+        fld.setDocValues(docValues);
+        return fld;
+    }
+
+    private static void add(IndexWriter iw, String artist, String genre) throws IOException {
+        Document doc = new Document();
+        doc.add(new SortedSetDocValuesField(ARTISTS, new BytesRef(artist)));
+        doc.add(new StringField(GENRES, genre, Store.NO));
+        iw.addDocument(doc);
+    }
+}